@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Archive saves entries to a file and loads them back.
+ * Several file formats are supported; the format of a file being loaded is
+ * detected from its first bytes, so any archive can be restored without
+ * naming its format.
+ */
+
+public class Archive {
+
+	/**
+	 * The file formats an archive can be written in.
+	 */
+	public enum Format {
+		/** One "key|v1,v2,..." line per entry. */
+		TEXT,
+		/** Length-prefixed keys and packed int arrays with a checksum. */
+		BINARY,
+		/** Zig-zag varints of the differences between values, in checked blocks. */
+		VARINT,
+		/** The VARINT format with every block compressed by Deflater. */
+		COMPRESSED;
+
+		/**
+		 * Finds the format with the given name, ignoring case.
+		 *
+		 * @param  name the name of the format
+		 * @return      the format, or null if there is no such format
+		 */
+		public static Format parse(String name) {
+			for (Format format : values()) {
+				if (format.name().equalsIgnoreCase(name)) {
+					return format;
+				}
+			}
+			return null;
+		}
+	}
+
+	private Archive() {
+	}
+
+	/**
+	 * Saves the entries to a file.
+	 *
+	 * @param  entries     the entries to save
+	 * @param  filename    the name of the file
+	 * @param  format      the format to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(Iterable<Entry> entries, String filename, Format format) throws IOException {
+		switch (format) {
+			case BINARY:
+				BinaryArchive.write(entries, filename);
+				break;
+			case VARINT:
+				VarintArchive.write(entries, filename, false);
+				break;
+			case COMPRESSED:
+				VarintArchive.write(entries, filename, true);
+				break;
+			default:
+				TextArchive.write(entries, filename);
+				break;
+		}
+	}
+
+	/**
+	 * Loads the entries from a file of any supported format.
+	 *
+	 * @param  filename    the name of the file
+	 * @return             the entries in the order they were saved
+	 * @throws IOException if the file cannot be read or is not a valid archive
+	 */
+	public static List<Entry> read(String filename) throws IOException {
+		switch (detect(filename)) {
+			case BINARY:
+				return BinaryArchive.read(filename);
+			case VARINT:
+				return VarintArchive.read(filename);
+			default:
+				return TextArchive.read(filename);
+		}
+	}
+
+	/**
+	 * Finds the format of a file from its first bytes.
+	 */
+	private static Format detect(String filename) throws IOException {
+		byte[] start = new byte[BinaryArchive.MAGIC.length];
+		int length = 0;
+
+		try (InputStream in = Files.newInputStream(Paths.get(filename))) {
+			int read;
+
+			while (length < start.length && (read = in.read(start, length, start.length - length)) > 0) {
+				length += read;
+			}
+		}
+
+		if (BinaryArchive.hasMagic(start, length)) {
+			return Format.BINARY;
+		} else if (VarintArchive.hasMagic(start, length)) {
+			return Format.VARINT;
+		}
+		return Format.TEXT;
+	}
+}
@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BackgroundArchiver writes archives on its own I/O thread so that the
+ * command loop does not wait for the file to be written.
+ *
+ * Each archive is written to a temporary file next to the target, synced
+ * and then renamed over the target, so the file under its final name is
+ * always a complete archive. Jobs run one at a time in the order they were
+ * started and can be listed with their progress.
+ */
+
+public class BackgroundArchiver {
+
+	/**
+	 * The state of an archive job.
+	 */
+	public enum State { QUEUED, WRITING, DONE, FAILED }
+
+	/**
+	 * Job is one archive being written in the background.
+	 */
+	public static final class Job {
+		private final int number;
+		private final int snapshotId;
+		private final String filename;
+		private final Archive.Format format;
+		private final List<Entry> entries;
+		private volatile State state;
+		private volatile int written;
+		private volatile String error;
+		private final CountDownLatch finished;
+
+		private Job(int number, int snapshotId, String filename, Archive.Format format, List<Entry> entries) {
+			this.number = number;
+			this.snapshotId = snapshotId;
+			this.filename = filename;
+			this.format = format;
+			this.entries = entries;
+			this.state = State.QUEUED;
+			this.written = 0;
+			this.finished = new CountDownLatch(1);
+		}
+
+		public int getNumber() {
+			return number;
+		}
+
+		/**
+		 * Describes the job and its progress on one line.
+		 */
+		public String toString() {
+			String description = "job " + number + ": snapshot " + snapshotId + " to " + filename + " ";
+
+			switch (state) {
+				case QUEUED:
+					return description + "queued";
+				case WRITING:
+					return description + "writing " + written + "/" + entries.size() + " entries";
+				case DONE:
+					return description + "done";
+				default:
+					return description + "failed: " + error;
+			}
+		}
+
+		/**
+		 * Iterates over the entries, counting each one handed to the writer.
+		 */
+		private Iterable<Entry> counted() {
+			return () -> new Iterator<Entry>() {
+				private int next = 0;
+
+				public boolean hasNext() {
+					return next < entries.size();
+				}
+
+				public Entry next() {
+					Entry entry = entries.get(next++);
+					written = next;
+					return entry;
+				}
+			};
+		}
+	}
+
+	private final ExecutorService executor;
+	private final List<Job> jobs;
+	private int lastNumber;
+
+	public BackgroundArchiver() {
+		executor = Executors.newSingleThreadExecutor(task -> {
+			Thread thread = new Thread(task, "archive-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		jobs = new ArrayList<Job>();
+		lastNumber = 0;
+	}
+
+	/**
+	 * Starts writing the entries of a snapshot to a file. The entries are
+	 * frozen, and the list of them must not be changed afterwards.
+	 *
+	 * @param  snapshotId the id of the snapshot
+	 * @param  entries    the entries of the snapshot
+	 * @param  filename   the name of the file
+	 * @param  format     the format to write
+	 * @return            the new job
+	 */
+	public Job start(int snapshotId, List<Entry> entries, String filename, Archive.Format format) {
+		Job job = new Job(++lastNumber, snapshotId, filename, format, entries);
+
+		synchronized (jobs) {
+			jobs.add(job);
+		}
+		executor.execute(() -> run(job));
+		return job;
+	}
+
+	/**
+	 * Lists the jobs from most recently started to least recently started.
+	 *
+	 * @return the jobs
+	 */
+	public List<Job> list() {
+		List<Job> listed;
+
+		synchronized (jobs) {
+			listed = new ArrayList<Job>(jobs);
+		}
+
+		Collections.reverse(listed);
+		return listed;
+	}
+
+	/**
+	 * Waits for the unfinished jobs that write the given file, so that
+	 * restoring the file reads the archive that was asked for.
+	 *
+	 * @param filename the name of the file
+	 */
+	public void awaitFile(String filename) {
+		Path target = Paths.get(filename).toAbsolutePath();
+		Job last = null;
+
+		synchronized (jobs) {
+			for (Job job : jobs) {
+				if (job.finished.getCount() > 0 && Paths.get(job.filename).toAbsolutePath().equals(target)) {
+					last = job;
+				}
+			}
+		}
+
+		//Jobs run in the order they were started, so the last one finishes after the others.
+		if (last != null) {
+			try {
+				last.finished.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Waits for every started job to finish and stops the I/O thread.
+	 */
+	public void close() {
+		executor.shutdown();
+
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run(Job job) {
+		job.state = State.WRITING;
+
+		try {
+			publish(job);
+			job.state = State.DONE;
+		} catch (IOException | RuntimeException e) {
+			job.error = (e.getMessage() != null) ? e.getMessage() : e.toString();
+			job.state = State.FAILED;
+			System.err.println(job.filename + ": " + job.error);
+		} finally {
+			job.finished.countDown();
+		}
+	}
+
+	/**
+	 * Writes the archive to a temporary file, syncs it and renames it over
+	 * the target.
+	 */
+	private static void publish(Job job) throws IOException {
+		Path target = Paths.get(job.filename).toAbsolutePath();
+		Path directory = target.getParent();
+		Path temporary = target.resolveSibling("." + target.getFileName() + "." + job.number + ".tmp");
+
+		try {
+			Archive.write(job.counted(), temporary.toString(), job.format);
+
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+				channel.force(true);
+			}
+
+			try {
+				Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+
+		syncDirectory(directory);
+	}
+
+	/**
+	 * Syncs the directory so that the rename itself survives a crash.
+	 * Not every platform can open a directory, in which case this does nothing.
+	 */
+	private static void syncDirectory(Path directory) {
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,307 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * BinaryArchive reads and writes the binary archive format.
+ *
+ * The file starts with an 8 byte header: the magic bytes 0x89 'C' 'D' 'B',
+ * a version byte and three reserved zero bytes. Each entry follows as the
+ * byte length of its UTF-8 key, the key, the number of values and the
+ * values as 4 byte ints. A key length of -1 ends the entries, and the last
+ * 4 bytes hold the CRC32 of everything between the header and themselves.
+ * All numbers are big-endian.
+ *
+ * Files are read through memory mapped windows, so restoring copies the
+ * values straight from the mapping into the entries.
+ */
+
+public class BinaryArchive {
+	public static final byte[] MAGIC = { (byte) 0x89, 'C', 'D', 'B' };
+	public static final byte VERSION = 1;
+
+	private static final int HEADER_SIZE = 8;
+	private static final int END_OF_ENTRIES = -1;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private BinaryArchive() {
+	}
+
+	/**
+	 * Checks whether the first bytes of a file are the magic bytes of this format.
+	 *
+	 * @param  start  the first bytes of the file
+	 * @param  length the number of bytes read
+	 * @return        true if the file is a binary archive
+	 */
+	public static boolean hasMagic(byte[] start, int length) {
+		if (length < MAGIC.length) {
+			return false;
+		}
+
+		for (int i=0;i<MAGIC.length;i++) {
+			if (start[i] != MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Saves the entries to a binary file.
+	 *
+	 * @param  entries     the entries to save
+	 * @param  filename    the name of the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(Iterable<Entry> entries, String filename) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.put(MAGIC).put(VERSION).put((byte) 0).put((byte) 0).put((byte) 0);
+			header.flip();
+			writeFully(channel, header);
+
+			ChecksumOutput out = new ChecksumOutput(channel);
+
+			for (Entry entry : entries) {
+				byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+				IntList values = entry.readValues();
+
+				out.putInt(key.length);
+				out.put(key);
+				out.putInt(values.size());
+
+				for (int i=0;i<values.size();i++) {
+					out.putInt(values.get(i));
+				}
+			}
+
+			out.putInt(END_OF_ENTRIES);
+			out.finish();
+		}
+	}
+
+	/**
+	 * Loads the entries from a binary file. Entries without values are skipped.
+	 *
+	 * @param  filename    the name of the file
+	 * @return             the entries in the order they were saved
+	 * @throws IOException if the file cannot be read or is not a valid archive
+	 */
+	public static List<Entry> read(String filename) throws IOException {
+		List<Entry> allEntries = new ArrayList<Entry>();
+
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			long size = channel.size();
+
+			if (size < HEADER_SIZE + 8) {
+				throw new IOException(filename + " is truncated");
+			}
+
+			MappedInput in = new MappedInput(channel, size);
+			byte[] header = new byte[HEADER_SIZE];
+			in.get(header);
+
+			if (!hasMagic(header, header.length)) {
+				throw new IOException(filename + " is not a binary archive");
+			}
+			if (header[MAGIC.length] != VERSION) {
+				throw new IOException(filename + " has unsupported version " + header[MAGIC.length]);
+			}
+			if (in.checksum(HEADER_SIZE, size - 4) != in.intAt(size - 4)) {
+				throw new IOException(filename + " failed its checksum");
+			}
+
+			int[] scratch = new int[BUFFER_SIZE / 4];
+
+			while (true) {
+				int keyLength = in.getInt();
+
+				if (keyLength == END_OF_ENTRIES) {
+					break;
+				}
+				in.check(keyLength, 1, size - 4);
+				byte[] key = new byte[keyLength];
+				in.get(key);
+
+				int count = in.getInt();
+				in.check(count, 4, size - 4);
+				IntList values = new IntList(count);
+				in.getInts(values, count, scratch);
+
+				if (count > 0) {
+					allEntries.add(Entry.adopt(new String(key, StandardCharsets.UTF_8), values));
+				}
+			}
+
+			if (in.position() != size - 4) {
+				throw new IOException(filename + " has data after its entries");
+			}
+		}
+
+		return allEntries;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * ChecksumOutput buffers writes to a channel and keeps a CRC32 of
+	 * everything written through it.
+	 */
+	private static final class ChecksumOutput {
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private final CRC32 crc;
+
+		ChecksumOutput(FileChannel channel) {
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			this.crc = new CRC32();
+		}
+
+		void putInt(int value) throws IOException {
+			if (buffer.remaining() < 4) {
+				flush();
+			}
+			buffer.putInt(value);
+		}
+
+		void put(byte[] bytes) throws IOException {
+			int offset = 0;
+
+			while (offset < bytes.length) {
+				if (!buffer.hasRemaining()) {
+					flush();
+				}
+				int length = Math.min(buffer.remaining(), bytes.length - offset);
+				buffer.put(bytes, offset, length);
+				offset += length;
+			}
+		}
+
+		/**
+		 * Writes the checksum after everything written so far.
+		 */
+		void finish() throws IOException {
+			flush();
+			buffer.putInt((int) crc.getValue());
+			buffer.flip();
+			writeFully(channel, buffer);
+			buffer.clear();
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			crc.update(buffer.duplicate());
+			writeFully(channel, buffer);
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * MappedInput reads a file through memory mapped windows of up to 1 GB,
+	 * moving the window forward whenever a read would run past its end.
+	 */
+	private static final class MappedInput {
+		private static final long WINDOW_SIZE = 1L << 30;
+
+		private final FileChannel channel;
+		private final long size;
+		private long windowStart;
+		private MappedByteBuffer window;
+
+		MappedInput(FileChannel channel, long size) throws IOException {
+			this.channel = channel;
+			this.size = size;
+			map(0);
+		}
+
+		long position() {
+			return windowStart + window.position();
+		}
+
+		int getInt() throws IOException {
+			require(4);
+			return window.getInt();
+		}
+
+		void get(byte[] bytes) throws IOException {
+			require(bytes.length);
+			window.get(bytes);
+		}
+
+		/**
+		 * Reads count ints into the list, copying them in blocks through scratch.
+		 */
+		void getInts(IntList values, int count, int[] scratch) throws IOException {
+			while (count > 0) {
+				require(4);
+				int block = Math.min(count, Math.min(scratch.length, window.remaining() / 4));
+				window.asIntBuffer().get(scratch, 0, block);
+				window.position(window.position() + block * 4);
+				values.addAll(scratch, 0, block);
+				count -= block;
+			}
+		}
+
+		/**
+		 * Makes sure that count items of the given width fit before the limit.
+		 */
+		void check(int count, int width, long limit) throws IOException {
+			if (count < 0 || position() + (long) count * width > limit) {
+				throw new IOException("archive is corrupt at byte " + position());
+			}
+		}
+
+		int intAt(long position) throws IOException {
+			ByteBuffer bytes = ByteBuffer.allocate(4);
+
+			while (bytes.hasRemaining() && channel.read(bytes, position + bytes.position()) > 0) {
+			}
+			bytes.flip();
+			return bytes.getInt();
+		}
+
+		/**
+		 * Computes the CRC32 of the bytes between two positions without
+		 * moving the read position.
+		 */
+		int checksum(long from, long to) throws IOException {
+			CRC32 crc = new CRC32();
+
+			for (long start=from;start<to;start+=WINDOW_SIZE) {
+				long length = Math.min(WINDOW_SIZE, to - start);
+				crc.update(channel.map(FileChannel.MapMode.READ_ONLY, start, length));
+			}
+			return (int) crc.getValue();
+		}
+
+		private void require(int bytes) throws IOException {
+			if (window.remaining() < bytes) {
+				long position = position();
+
+				if (size - position < bytes) {
+					throw new IOException("archive is truncated");
+				}
+				map(position);
+			}
+		}
+
+		private void map(long position) throws IOException {
+			windowStart = position;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, size - position));
+		}
+	}
+}
@@ -0,0 +1,505 @@
+import java.util.Arrays;
+
+/**
+ * Bitmap is a compressed set of int values in the style of a Roaring bitmap.
+ * Values are split into chunks of 65536 by their high 16 bits. A sparse
+ * chunk stores the low 16 bits of its values in a sorted array, a dense
+ * chunk stores one bit per possible value so that AND, OR, ANDNOT and XOR
+ * work a 64-bit word at a time.
+ *
+ * A Bitmap is never changed once built, operations return a new Bitmap
+ * that may share chunks with its inputs.
+ */
+
+public class Bitmap {
+	private static final int ARRAY_LIMIT = 4096;
+	private static final int WORDS = 1024;
+	private static final Bitmap EMPTY = new Bitmap(new char[0], new Chunk[0], 0);
+
+	//Chunk keys are the high 16 bits with the sign bit flipped, so that
+	//ascending keys give the values in ascending signed order.
+	private final char[] keys;
+	private final Chunk[] chunks;
+	private final int size;
+
+	private Bitmap(char[] keys, Chunk[] chunks, int size) {
+		this.keys = keys;
+		this.chunks = chunks;
+		this.size = size;
+	}
+
+	/**
+	 * Finds the Bitmap without any values.
+	 *
+	 * @return the empty Bitmap
+	 */
+	public static Bitmap empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * Builds a Bitmap of the given values.
+	 *
+	 * @param  values the values, duplicates are allowed
+	 * @param  sorted true if the values are already in ascending order
+	 * @return        the Bitmap
+	 */
+	public static Bitmap of(IntList values, boolean sorted) {
+		IntList ordered = values;
+
+		if (!sorted) {
+			ordered = new IntList(values);
+			ordered.sort();
+		}
+
+		int[] array = ordered.toArray();
+		Builder builder = new Builder();
+		int start = 0;
+
+		//Each run of values with the same high bits becomes one chunk.
+		while (start < array.length) {
+			int high = highBits(array[start]);
+			int end = start + 1;
+
+			while (end < array.length && highBits(array[end]) == high) {
+				end++;
+			}
+			builder.add((char) high, Chunk.fromSorted(array, start, end));
+			start = end;
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Finds the number of values.
+	 *
+	 * @return the number of values
+	 */
+	public int cardinality() {
+		int total = 0;
+
+		for (int i=0;i<size;i++) {
+			total += chunks[i].cardinality;
+		}
+		return total;
+	}
+
+	/**
+	 * Checks whether the Bitmap has no values.
+	 *
+	 * @return true if there are no values
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Computes the values in both this Bitmap and the other.
+	 *
+	 * @param  other the other Bitmap
+	 * @return       the intersection
+	 */
+	public Bitmap and(Bitmap other) {
+		Builder result = new Builder();
+		int i = 0;
+		int k = 0;
+
+		while (i < size && k < other.size) {
+			if (keys[i] < other.keys[k]) {
+				i++;
+			} else if (keys[i] > other.keys[k]) {
+				k++;
+			} else {
+				result.add(keys[i], Chunk.and(chunks[i], other.chunks[k]));
+				i++;
+				k++;
+			}
+		}
+		return result.build();
+	}
+
+	/**
+	 * Computes the values in this Bitmap or the other.
+	 *
+	 * @param  other the other Bitmap
+	 * @return       the union
+	 */
+	public Bitmap or(Bitmap other) {
+		Builder result = new Builder();
+		int i = 0;
+		int k = 0;
+
+		while (i < size || k < other.size) {
+			if (k == other.size || (i < size && keys[i] < other.keys[k])) {
+				result.add(keys[i], chunks[i]);
+				i++;
+			} else if (i == size || keys[i] > other.keys[k]) {
+				result.add(other.keys[k], other.chunks[k]);
+				k++;
+			} else {
+				result.add(keys[i], Chunk.or(chunks[i], other.chunks[k]));
+				i++;
+				k++;
+			}
+		}
+		return result.build();
+	}
+
+	/**
+	 * Computes the values in this Bitmap that are not in the other.
+	 *
+	 * @param  other the other Bitmap
+	 * @return       the difference
+	 */
+	public Bitmap andNot(Bitmap other) {
+		Builder result = new Builder();
+		int k = 0;
+
+		for (int i=0;i<size;i++) {
+			while (k < other.size && other.keys[k] < keys[i]) {
+				k++;
+			}
+
+			if (k < other.size && other.keys[k] == keys[i]) {
+				result.add(keys[i], Chunk.andNot(chunks[i], other.chunks[k]));
+			} else {
+				result.add(keys[i], chunks[i]);
+			}
+		}
+		return result.build();
+	}
+
+	/**
+	 * Computes the values in exactly one of this Bitmap and the other.
+	 *
+	 * @param  other the other Bitmap
+	 * @return       the symmetric difference
+	 */
+	public Bitmap xor(Bitmap other) {
+		Builder result = new Builder();
+		int i = 0;
+		int k = 0;
+
+		while (i < size || k < other.size) {
+			if (k == other.size || (i < size && keys[i] < other.keys[k])) {
+				result.add(keys[i], chunks[i]);
+				i++;
+			} else if (i == size || keys[i] > other.keys[k]) {
+				result.add(other.keys[k], other.chunks[k]);
+				k++;
+			} else {
+				result.add(keys[i], Chunk.xor(chunks[i], other.chunks[k]));
+				i++;
+				k++;
+			}
+		}
+		return result.build();
+	}
+
+	/**
+	 * Copies the values into a list in ascending order.
+	 *
+	 * @return the list of values
+	 */
+	public IntList toList() {
+		IntList list = new IntList(cardinality());
+
+		for (int i=0;i<size;i++) {
+			chunks[i].addTo(list, keys[i] << 16);
+		}
+		return list;
+	}
+
+	private static int highBits(int value) {
+		return (value ^ Integer.MIN_VALUE) >>> 16;
+	}
+
+	/**
+	 * Collects chunks in ascending key order, skipping empty ones.
+	 */
+	private static final class Builder {
+		private char[] keys = new char[4];
+		private Chunk[] chunks = new Chunk[4];
+		private int size = 0;
+
+		void add(char key, Chunk chunk) {
+			if (chunk == null) {
+				return;
+			}
+
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				chunks = Arrays.copyOf(chunks, size * 2);
+			}
+			keys[size] = key;
+			chunks[size] = chunk;
+			size++;
+		}
+
+		Bitmap build() {
+			if (size == 0) {
+				return EMPTY;
+			}
+			return new Bitmap(keys, chunks, size);
+		}
+	}
+
+	/**
+	 * Chunk holds the low 16 bits of up to 65536 values, either as a sorted
+	 * array or as 1024 words of bits. Operations return null for an empty result.
+	 */
+	private static final class Chunk {
+		private final char[] array;
+		private final long[] words;
+		private final int cardinality;
+
+		private Chunk(char[] array, long[] words, int cardinality) {
+			this.array = array;
+			this.words = words;
+			this.cardinality = cardinality;
+		}
+
+		static Chunk fromSorted(int[] values, int from, int to) {
+			char[] low = new char[to - from];
+			int count = 0;
+
+			for (int i=from;i<to;i++) {
+				char value = (char) values[i];
+
+				if (count == 0 || low[count - 1] != value) {
+					low[count++] = value;
+				}
+			}
+			return ofArray(low, count);
+		}
+
+		/**
+		 * Wraps the first count values of a sorted array, switching to bits
+		 * when there are too many values for an array to be smaller.
+		 */
+		static Chunk ofArray(char[] array, int count) {
+			if (count == 0) {
+				return null;
+			}
+
+			if (count > ARRAY_LIMIT) {
+				long[] words = new long[WORDS];
+
+				for (int i=0;i<count;i++) {
+					words[array[i] >>> 6] |= 1L << array[i];
+				}
+				return new Chunk(null, words, count);
+			}
+			return new Chunk(array, null, count);
+		}
+
+		/**
+		 * Wraps the words, switching to an array when there are few enough values.
+		 */
+		static Chunk ofWords(long[] words) {
+			int count = 0;
+
+			for (int i=0;i<WORDS;i++) {
+				count += Long.bitCount(words[i]);
+			}
+
+			if (count == 0) {
+				return null;
+			}
+
+			if (count <= ARRAY_LIMIT) {
+				char[] array = new char[count];
+				int n = 0;
+
+				for (int i=0;i<WORDS;i++) {
+					long word = words[i];
+
+					while (word != 0) {
+						array[n++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+						word &= word - 1;
+					}
+				}
+				return new Chunk(array, null, count);
+			}
+			return new Chunk(null, words, count);
+		}
+
+		boolean contains(char value) {
+			if (words != null) {
+				return (words[value >>> 6] & (1L << value)) != 0;
+			}
+			return Arrays.binarySearch(array, 0, cardinality, value) >= 0;
+		}
+
+		/**
+		 * Copies the values of this chunk into new words of bits.
+		 */
+		long[] toWords() {
+			if (words != null) {
+				return words.clone();
+			}
+
+			long[] newWords = new long[WORDS];
+			for (int i=0;i<cardinality;i++) {
+				newWords[array[i] >>> 6] |= 1L << array[i];
+			}
+			return newWords;
+		}
+
+		void addTo(IntList list, int high) {
+			if (words == null) {
+				for (int i=0;i<cardinality;i++) {
+					list.add((high | array[i]) ^ Integer.MIN_VALUE);
+				}
+				return;
+			}
+
+			for (int i=0;i<WORDS;i++) {
+				long word = words[i];
+
+				while (word != 0) {
+					list.add((high | ((i << 6) + Long.numberOfTrailingZeros(word))) ^ Integer.MIN_VALUE);
+					word &= word - 1;
+				}
+			}
+		}
+
+		static Chunk and(Chunk a, Chunk b) {
+			if (a.words == null && b.words == null) {
+				char[] result = new char[Math.min(a.cardinality, b.cardinality)];
+				int count = 0;
+				int i = 0;
+				int k = 0;
+
+				while (i < a.cardinality && k < b.cardinality) {
+					if (a.array[i] < b.array[k]) {
+						i++;
+					} else if (a.array[i] > b.array[k]) {
+						k++;
+					} else {
+						result[count++] = a.array[i];
+						i++;
+						k++;
+					}
+				}
+				return ofArray(result, count);
+			}
+
+			if (a.words == null || b.words == null) {
+				Chunk sparse = (a.words == null) ? a : b;
+				Chunk dense = (a.words == null) ? b : a;
+				char[] result = new char[sparse.cardinality];
+				int count = 0;
+
+				for (int i=0;i<sparse.cardinality;i++) {
+					if (dense.contains(sparse.array[i])) {
+						result[count++] = sparse.array[i];
+					}
+				}
+				return ofArray(result, count);
+			}
+
+			long[] words = new long[WORDS];
+			for (int i=0;i<WORDS;i++) {
+				words[i] = a.words[i] & b.words[i];
+			}
+			return ofWords(words);
+		}
+
+		static Chunk or(Chunk a, Chunk b) {
+			if (a.words == null && b.words == null) {
+				char[] result = new char[a.cardinality + b.cardinality];
+				int count = 0;
+				int i = 0;
+				int k = 0;
+
+				while (i < a.cardinality || k < b.cardinality) {
+					if (k == b.cardinality || (i < a.cardinality && a.array[i] < b.array[k])) {
+						result[count++] = a.array[i++];
+					} else if (i == a.cardinality || a.array[i] > b.array[k]) {
+						result[count++] = b.array[k++];
+					} else {
+						result[count++] = a.array[i];
+						i++;
+						k++;
+					}
+				}
+				return ofArray(result, count);
+			}
+
+			long[] words = a.toWords();
+
+			if (b.words == null) {
+				for (int i=0;i<b.cardinality;i++) {
+					words[b.array[i] >>> 6] |= 1L << b.array[i];
+				}
+			} else {
+				for (int i=0;i<WORDS;i++) {
+					words[i] |= b.words[i];
+				}
+			}
+			return ofWords(words);
+		}
+
+		static Chunk andNot(Chunk a, Chunk b) {
+			if (a.words == null) {
+				char[] result = new char[a.cardinality];
+				int count = 0;
+
+				for (int i=0;i<a.cardinality;i++) {
+					if (!b.contains(a.array[i])) {
+						result[count++] = a.array[i];
+					}
+				}
+				return ofArray(result, count);
+			}
+
+			long[] words = a.toWords();
+
+			if (b.words == null) {
+				for (int i=0;i<b.cardinality;i++) {
+					words[b.array[i] >>> 6] &= ~(1L << b.array[i]);
+				}
+			} else {
+				for (int i=0;i<WORDS;i++) {
+					words[i] &= ~b.words[i];
+				}
+			}
+			return ofWords(words);
+		}
+
+		static Chunk xor(Chunk a, Chunk b) {
+			if (a.words == null && b.words == null) {
+				char[] result = new char[a.cardinality + b.cardinality];
+				int count = 0;
+				int i = 0;
+				int k = 0;
+
+				while (i < a.cardinality || k < b.cardinality) {
+					if (k == b.cardinality || (i < a.cardinality && a.array[i] < b.array[k])) {
+						result[count++] = a.array[i++];
+					} else if (i == a.cardinality || a.array[i] > b.array[k]) {
+						result[count++] = b.array[k++];
+					} else {
+						i++;
+						k++;
+					}
+				}
+				return ofArray(result, count);
+			}
+
+			long[] words = a.toWords();
+
+			if (b.words == null) {
+				for (int i=0;i<b.cardinality;i++) {
+					words[b.array[i] >>> 6] ^= 1L << b.array[i];
+				}
+			} else {
+				for (int i=0;i<WORDS;i++) {
+					words[i] ^= b.words[i];
+				}
+			}
+			return ofWords(words);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * BlockingServer serves one database over TCP with a thread per connection.
+ *
+ * It speaks the same protocol as CrunchServer, but each connection reads
+ * and runs its commands on its own thread with plain blocking sockets, and
+ * commands from different connections run at the same time through a
+ * SharedDatabase such as LockedDatabase. Connections get virtual threads when the JVM has them,
+ * and threads from a cached pool otherwise.
+ */
+
+public class BlockingServer implements Server {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final SharedDatabase database;
+	private final ServerSocket server;
+	private final ExecutorService connections;
+	private volatile boolean running;
+
+	/**
+	 * Opens the server socket. Connections are accepted once run is called.
+	 *
+	 * @param  database    the database to serve
+	 * @param  port        the port to listen on, or 0 for any free port
+	 * @throws IOException if the socket cannot be opened
+	 */
+	public BlockingServer(SharedDatabase database, int port) throws IOException {
+		this.database = database;
+		this.server = new ServerSocket();
+		this.server.bind(new InetSocketAddress(port), 1024);
+		this.connections = newThreadPerConnectionExecutor();
+		this.running = true;
+	}
+
+	/**
+	 * Finds the port the server is listening on.
+	 *
+	 * @return the port
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Accepts connections until stop is called.
+	 *
+	 * @throws IOException if the server socket fails
+	 */
+	public void run() throws IOException {
+		try {
+			while (running) {
+				Socket socket;
+
+				try {
+					socket = server.accept();
+				} catch (IOException e) {
+					if (!running) {
+						break;
+					}
+					throw e;
+				}
+				connections.execute(() -> serve(socket));
+			}
+		} finally {
+			connections.shutdownNow();
+		}
+	}
+
+	/**
+	 * Stops accepting connections.
+	 */
+	public void stop() {
+		running = false;
+
+		try {
+			server.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Runs the commands of one connection until BYE or the end of its input.
+	 */
+	private void serve(Socket socket) {
+		try (Socket client = socket) {
+			client.setTcpNoDelay(true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+			PrintStream out = new PrintStream(new BufferedOutputStream(client.getOutputStream(), BUFFER_SIZE), false, StandardCharsets.UTF_8);
+			out.print("> ");
+			out.flush();
+			String line;
+
+			while ((line = in.readLine()) != null) {
+				if (!database.execute(line, out)) {
+					break;
+				}
+				out.print("\n> ");
+
+				//Pipelined commands are answered together once the input runs dry.
+				if (!in.ready()) {
+					out.flush();
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			//The client went away, which only ends its own connection.
+		}
+	}
+
+	/**
+	 * Creates an executor that starts a virtual thread per task on JVMs that
+	 * have them. On older JVMs it falls back to a cached thread pool.
+	 */
+	private static ExecutorService newThreadPerConnectionExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return Executors.newCachedThreadPool(task -> {
+				Thread thread = new Thread(task, "connection");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+}
@@ -0,0 +1,111 @@
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * CartesianProduct enumerates the tuples of the Cartesian product of entries
+ * without storing them. An odometer of indexes, one per entry, steps through
+ * the tuples with the last entry changing fastest, so memory stays
+ * proportional to the number of entries however large the product is.
+ */
+
+public class CartesianProduct {
+	private static final int BUFFER_SIZE = 8192;
+
+	private IntList[] lists;
+
+	/**
+	 * Creates the product of the entries, with the first entry outermost.
+	 * The entries must not change while the product is in use.
+	 *
+	 * @param entries the entries
+	 */
+	public CartesianProduct(List<Entry> entries) {
+		lists = new IntList[entries.size()];
+
+		for (int i=0;i<lists.length;i++) {
+			lists[i] = entries.get(i).readValues();
+		}
+	}
+
+	/**
+	 * Finds the number of tuples without enumerating them.
+	 *
+	 * @return the number of tuples
+	 */
+	public BigInteger count() {
+		BigInteger total = BigInteger.ONE;
+
+		for (int i=0;i<lists.length;i++) {
+			total = total.multiply(BigInteger.valueOf(lists[i].size()));
+		}
+		return total;
+	}
+
+	/**
+	 * Writes the tuples as "[ [a b] [a c] ]" followed by a line break.
+	 * The output is written in blocks as it is generated.
+	 *
+	 * @param out the stream to write to
+	 */
+	public void writeTo(PrintStream out) {
+		StringBuilder buffer = new StringBuilder(BUFFER_SIZE + 64);
+		buffer.append("[ ");
+
+		if (!isEmpty()) {
+			int[] indexes = new int[lists.length];
+
+			while (true) {
+				buffer.append("[");
+				for (int k=0;k<lists.length;k++) {
+					if (k > 0) {
+						buffer.append(" ");
+					}
+					buffer.append(lists[k].get(indexes[k]));
+				}
+				buffer.append("]");
+
+				if (!advance(indexes)) {
+					buffer.append(" ]");
+					break;
+				}
+				buffer.append(" ");
+
+				if (buffer.length() >= BUFFER_SIZE) {
+					out.append(buffer);
+					buffer.setLength(0);
+				}
+			}
+		}
+		out.println(buffer);
+	}
+
+	/**
+	 * Checks whether any entry has no values, which leaves no tuples.
+	 */
+	private boolean isEmpty() {
+		for (int i=0;i<lists.length;i++) {
+			if (lists[i].size() == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Moves the odometer to the next tuple.
+	 *
+	 * @return false if the last tuple was already reached
+	 */
+	private boolean advance(int[] indexes) {
+		for (int k=indexes.length-1;k>=0;k--) {
+			indexes[k]++;
+
+			if (indexes[k] < lists[k].size()) {
+				return true;
+			}
+			indexes[k] = 0;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,167 @@
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Command is a command word understood by CrunchDB.
+ *
+ * The first token of a line is looked up in a table built once from the
+ * names of the commands, grouped by length, so finding a command compares
+ * the token to a few names without creating a String or changing its case.
+ *
+ * Each command also knows which locks it needs when many threads share one
+ * database, and where it runs when the keys are spread over shards.
+ */
+
+public enum Command {
+	HELP(false, Locking.GLOBAL, Route.ANY),
+	BYE(false, Locking.GLOBAL, Route.ANY),
+	LIST(false, Locking.GLOBAL, Route.ANY),
+	GET(false, Locking.READ, Route.KEY),
+	DEL(true, Locking.KEY, Route.KEY),
+	PURGE(true, Locking.GLOBAL, Route.KEY),
+	SET(true, Locking.KEY, Route.KEY),
+	PUSH(true, Locking.KEY, Route.KEY),
+	APPEND(true, Locking.KEY, Route.KEY),
+	PICK(false, Locking.READ, Route.KEY),
+	PLUCK(true, Locking.KEY, Route.KEY),
+	POP(true, Locking.KEY, Route.KEY),
+	DROP(true, Locking.GLOBAL, Route.EVERY_SHARD),
+	ROLLBACK(true, Locking.GLOBAL, Route.EVERY_SHARD),
+	CHECKOUT(true, Locking.GLOBAL, Route.EVERY_SHARD),
+	SNAPSHOT(true, Locking.GLOBAL, Route.EVERY_SHARD),
+	ARCHIVE(false, Locking.GLOBAL, Route.FILE),
+	BGARCHIVE(false, Locking.GLOBAL, Route.FILE),
+	RESTORE(false, Locking.GLOBAL, Route.FILE),
+	MIN(false, Locking.READ, Route.KEY),
+	MAX(false, Locking.READ, Route.KEY),
+	SUM(false, Locking.READ, Route.KEY),
+	LEN(false, Locking.READ, Route.KEY),
+	REV(true, Locking.KEY, Route.KEY),
+	UNIQ(true, Locking.KEY, Route.KEY),
+	SORT(true, Locking.KEY, Route.KEY),
+	DIFF(false, Locking.READ, Route.COORDINATOR),
+	INTER(false, Locking.READ, Route.COORDINATOR),
+	UNION(false, Locking.READ, Route.COORDINATOR),
+	CARTPROD(false, Locking.READ, Route.COORDINATOR);
+
+	private static final Command[][] BY_LENGTH = byLength();
+
+	/**
+	 * Locking is what a command locks in a LockedDatabase.
+	 */
+	public enum Locking {
+		/** The stripe of its key, while it changes the key. */
+		KEY,
+		/** The stripes of its keys, only while it pins the entries it reads. */
+		READ,
+		/** The whole database, while it runs alone. */
+		GLOBAL
+	}
+
+	/**
+	 * Route is where a command runs in a ShardedDatabase.
+	 */
+	public enum Route {
+		/** On the shard that owns its key. */
+		KEY,
+		/** On every shard, which all give the same reply. */
+		EVERY_SHARD,
+		/** On the coordinator, which reads the entries of the shards. */
+		COORDINATOR,
+		/** On the coordinator, one file command at a time. */
+		FILE,
+		/** On any one shard, as the reply does not depend on the keys. */
+		ANY
+	}
+
+	private final String word;
+	private final boolean logged;
+	private final Locking locking;
+	private final Route route;
+
+	Command(boolean logged, Locking locking, Route route) {
+		this.word = name().toLowerCase(Locale.ROOT);
+		this.logged = logged;
+		this.locking = locking;
+		this.route = route;
+	}
+
+	/**
+	 * Checks if the command changes the database and is written to the log.
+	 * RESTORE is logged on its own terms.
+	 *
+	 * @return true if the command is logged
+	 */
+	public boolean isLogged() {
+		return logged;
+	}
+
+	/**
+	 * Finds what the command locks. LIST KEYS and LIST ENTRIES are reads,
+	 * the other lists lock the whole database.
+	 *
+	 * @param  tokens the tokens of the line
+	 * @return        what the command locks
+	 */
+	public Locking locking(Tokenizer tokens) {
+		if (this == LIST && tokens.count() == 2 && (tokens.is(1, "keys") || tokens.is(1, "entries"))) {
+			return Locking.READ;
+		}
+		return locking;
+	}
+
+	/**
+	 * Finds where the command runs. LIST SNAPSHOTS runs on any shard, as
+	 * every shard has the same snapshots, and the other lists run on the
+	 * coordinator.
+	 *
+	 * @param  tokens the tokens of the line
+	 * @return        where the command runs
+	 */
+	public Route route(Tokenizer tokens) {
+		if (this == LIST && tokens.count() == 2 && !tokens.is(1, "snapshots")) {
+			return Route.COORDINATOR;
+		}
+		return route;
+	}
+
+	/**
+	 * Finds the command named by a token, ignoring case.
+	 *
+	 * @param  tokens the tokens of a line
+	 * @param  index  the 0-based index of the token
+	 * @return        the command, or null if there is no such command
+	 */
+	public static Command find(Tokenizer tokens, int index) {
+		int length = tokens.length(index);
+
+		if (length >= BY_LENGTH.length) {
+			return null;
+		}
+
+		for (Command command : BY_LENGTH[length]) {
+			if (tokens.is(index, command.word)) {
+				return command;
+			}
+		}
+		return null;
+	}
+
+	private static Command[][] byLength() {
+		int longest = 0;
+
+		for (Command command : values()) {
+			longest = Math.max(longest, command.word.length());
+		}
+
+		Command[][] table = new Command[longest + 1][0];
+
+		for (Command command : values()) {
+			Command[] sameLength = table[command.word.length()];
+			sameLength = Arrays.copyOf(sameLength, sameLength.length + 1);
+			sameLength[sameLength.length - 1] = command;
+			table[command.word.length()] = sameLength;
+		}
+		return table;
+	}
+}
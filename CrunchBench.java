@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CrunchBench measures the throughput of a CrunchDB server over loopback.
+ *
+ * Every connection sends its commands in pipelined batches, alternating
+ * SET and GET on keys of its own, and waits for one reply prompt per
+ * command before sending the next batch.
+ *
+ * Usage: java CrunchBench [port] [connections] [commands per connection] [batch size]
+ */
+
+public class CrunchBench {
+	private static final byte[] NEXT_PROMPT = "\n> ".getBytes(StandardCharsets.US_ASCII);
+
+	public static void main(String[] args) throws Exception {
+		int port = (args.length > 0) ? Integer.parseInt(args[0]) : 7070;
+		int connections = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+		int commands = (args.length > 2) ? Integer.parseInt(args[2]) : 100000;
+		int batchSize = (args.length > 3) ? Integer.parseInt(args[3]) : 64;
+
+		AtomicLong batches = new AtomicLong();
+		AtomicLong batchNanos = new AtomicLong();
+		List<Thread> clients = new ArrayList<Thread>();
+		long start = System.nanoTime();
+
+		for (int c=0;c<connections;c++) {
+			int client = c;
+			Thread thread = new Thread(() -> {
+				try {
+					runClient(port, client, commands, batchSize, batches, batchNanos);
+				} catch (IOException e) {
+					System.err.println("client " + client + ": " + e.getMessage());
+				}
+			});
+			thread.start();
+			clients.add(thread);
+		}
+
+		for (Thread thread : clients) {
+			thread.join();
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long total = (long) connections * commands;
+		System.out.printf("%d commands over %d connections in %.2f s%n", total, connections, seconds);
+		System.out.printf("%.0f commands/s, %.1f us per batch of %d%n", total / seconds,
+			batchNanos.get() / 1e3 / Math.max(1, batches.get()), batchSize);
+	}
+
+	private static void runClient(int port, int client, int commands, int batchSize,
+			AtomicLong batches, AtomicLong batchNanos) throws IOException {
+		try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port))) {
+			ByteBuffer in = ByteBuffer.allocateDirect(1 << 16);
+			StringBuilder batch = new StringBuilder();
+			int matched = 0;
+
+			//Wait for the first prompt.
+			awaitReplies(channel, in, 0, new int[] { 0 });
+
+			for (int sent=0;sent<commands;) {
+				int count = Math.min(batchSize, commands - sent);
+				batch.setLength(0);
+
+				for (int i=0;i<count;i++) {
+					int n = sent + i;
+
+					if (n % 2 == 0) {
+						batch.append("set c").append(client).append("k").append(n % 1024).append(" ").append(n).append(" ").append(-n).append('\n');
+					} else {
+						batch.append("get c").append(client).append("k").append((n - 1) % 1024).append('\n');
+					}
+				}
+
+				long batchStart = System.nanoTime();
+				ByteBuffer out = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+
+				while (out.hasRemaining()) {
+					channel.write(out);
+				}
+
+				int[] state = { matched };
+				awaitReplies(channel, in, count, state);
+				matched = state[0];
+				batchNanos.addAndGet(System.nanoTime() - batchStart);
+				batches.incrementAndGet();
+				sent += count;
+			}
+
+			channel.write(ByteBuffer.wrap("bye\n".getBytes(StandardCharsets.US_ASCII)));
+		}
+	}
+
+	/**
+	 * Reads until the given number of reply prompts have arrived, or just
+	 * the first prompt when count is 0. state[0] carries how much of a
+	 * prompt was matched at the end of the last read.
+	 */
+	private static void awaitReplies(SocketChannel channel, ByteBuffer in, int count, int[] state) throws IOException {
+		int matched = state[0];
+		int seen = 0;
+		boolean first = (count == 0);
+
+		while (seen < Math.max(count, 1)) {
+			in.clear();
+
+			if (channel.read(in) < 0) {
+				throw new IOException("server closed the connection");
+			}
+			in.flip();
+
+			while (in.hasRemaining()) {
+				byte b = in.get();
+
+				if (first) {
+					if (b == ' ') {
+						seen = 1;
+					}
+					continue;
+				}
+
+				if (b == NEXT_PROMPT[matched]) {
+					matched++;
+
+					if (matched == NEXT_PROMPT.length) {
+						seen++;
+						matched = 0;
+					}
+				} else {
+					matched = (b == NEXT_PROMPT[0]) ? 1 : 0;
+				}
+			}
+		}
+		state[0] = matched;
+	}
+}
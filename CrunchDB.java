@@ -2,9 +2,18 @@ import java.util.List;
 import java.util.Map;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Scanner;
 import java.lang.NumberFormatException;
 import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.OutputStream;
+import java.io.FileNotFoundException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 /** 
  * This is responsible for the overall management of the database.
@@ -13,14 +22,97 @@ import java.util.Collections;
  * classes.
  */
 
-public class CrunchDB {
+public class CrunchDB implements WriteAheadLog.Replay {
 
-	private List<Entry> entries;
-	private List<Snapshot> snapshots;
+	/** The log record that carries the last snapshot id across a restart of the log. */
+	private static final String LAST_ID_RECORD = "#lastid ";
+
+	private Keyspace entries;
+	private SnapshotRegistry snapshots;
+	private KeyIndex keyIndex;
+	private final ThreadLocal<PrintStream> output;
+	/** The tokenizer and value list reused by the commands of each thread. */
+	private final ThreadLocal<Tokenizer> tokenizer = ThreadLocal.withInitial(Tokenizer::new);
+	private final ThreadLocal<IntList> commandValues = ThreadLocal.withInitial(IntList::new);
+	/** Guards the index of the current state while commands on different keys run at once. */
+	private final Object keyspaceLock = new Object();
+	private WriteAheadLog log;
+	private BackgroundArchiver archiver;
+	private ReadVersion.Guard readGuard;
+	private final AtomicLong clock = new AtomicLong();
 
 	public CrunchDB() {
-		entries = new ArrayList<Entry>();
-		snapshots = new ArrayList<Snapshot>();
+		keyIndex = new KeyIndex();
+		entries = new Keyspace(keyIndex);
+		snapshots = new SnapshotRegistry();
+		output = ThreadLocal.withInitial(() -> System.out);
+		readGuard = ReadVersion.UNGUARDED;
+	}
+
+	/**
+	 * Sets where the output of commands run by the calling thread is written.
+	 * Each thread starts out writing to standard output.
+	 *
+	 * @param out the stream to write to
+	 */
+	public void setOutput(PrintStream out) {
+		output.set(out);
+	}
+
+	/**
+	 * Finds where the output of the current command is written.
+	 */
+	private PrintStream out() {
+		return output.get();
+	}
+
+	/**
+	 * Sets what holds off writers while a read command pins its entries.
+	 *
+	 * @param readGuard the guard
+	 */
+	public void setReadGuard(ReadVersion.Guard readGuard) {
+		this.readGuard = readGuard;
+	}
+
+	/**
+	 * Sets the log that commands changing the database are written to.
+	 *
+	 * @param log the log, or null to stop logging
+	 */
+	public void setLog(WriteAheadLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * Replaces the state with the checkpoint a log starts from, as RESTORE
+	 * does, without writing any output.
+	 *
+	 * @param newEntries the entries, from most recently added to least recently added
+	 */
+	public void restoreCheckpoint(List<Entry> newEntries) {
+		adopt(newEntries);
+	}
+
+	/**
+	 * Runs one command read back from the log, without writing any output.
+	 *
+	 * @param line the logged command line
+	 */
+	public void replay(String line) {
+		if (line.startsWith(LAST_ID_RECORD)) {
+			snapshots.skipTo(Integer.parseInt(line.substring(LAST_ID_RECORD.length())));
+			return;
+		}
+
+		PrintStream previous = out();
+		setOutput(new PrintStream(OutputStream.nullOutputStream()));
+		
+		try {
+			execute(line);
+		} finally {
+			setOutput(previous);
+		}
 	}
 	
 	
@@ -28,18 +120,86 @@ public class CrunchDB {
 	 * Custom function used to find the Entry object of a key.
 	 */
 	private Entry findKey(String key) {
-		for (int i=0;i<entries.size();i++) {
-			if (entries.get(i).getKey().equals(key)) {
-				return entries.get(i);
+		synchronized (keyspaceLock) {
+			return entries.get(key);
+		}
+	}
+
+	/**
+	 * Pins the entries of keys for a read command.
+	 */
+	private ReadVersion pin(List<String> keys) {
+		return readGuard.pin(keys, () -> {
+			synchronized (keyspaceLock) {
+				return ReadVersion.of(entries, keys);
+			}
+		});
+	}
+
+	private ReadVersion pin(String key) {
+		return pin(Collections.singletonList(key));
+	}
+
+	/**
+	 * Pins every entry of the current state for a read command.
+	 */
+	private ReadVersion pinAll() {
+		return readGuard.pin(null, () -> {
+			synchronized (keyspaceLock) {
+				return ReadVersion.ofAll(entries);
+			}
+		});
+	}
+
+	/**
+	 * Pins entries for a read command run by another CrunchDB.
+	 *
+	 * @param  keys the keys to pin, or null for every entry
+	 * @return      the pinned entries
+	 */
+	protected ReadVersion pinEntries(List<String> keys) {
+		return (keys == null) ? pinAll() : pin(keys);
+	}
+
+	/**
+	 * Hands out stamps that order entries by when their keys were added.
+	 *
+	 * @param  count the number of stamps needed
+	 * @return       the first of count consecutive new stamps
+	 */
+	public long takeStamps(int count) {
+		return clock.getAndAdd(count) + 1;
+	}
+
+	/**
+	 * Makes the next stamp handed out equal to the given one.
+	 *
+	 * @param stamp the next stamp
+	 */
+	public void setNextStamp(long stamp) {
+		clock.set(stamp - 1);
+	}
+
+	/**
+	 * Custom function used to find the Entry object of a key before changing it.
+	 * If the Entry is shared with a snapshot or pinned by a reader, it is replaced by a copy first.
+	 */
+	private Entry findWritableKey(String key) {
+		synchronized (keyspaceLock) {
+			Entry keyEntry = entries.get(key);
+
+			if (keyEntry != null && keyEntry.isShared()) {
+				keyEntry = keyEntry.thaw();
+				entries.replace(keyEntry);
 			}
+			return keyEntry;
 		}
-		return null;
 	}
 
 	/**
 	 * Custom function used to create a String for output.
 	 */
-	private <T> String getOutput(List<T> unformatted) {
+	private String getOutput(IntList unformatted) {
 		StringBuilder outputString = new StringBuilder();
 		outputString.append("[");
 
@@ -63,13 +223,15 @@ public class CrunchDB {
 	 * Displays all keys in current state.
 	 */
 	private void listKeys() {
-		if (entries.size() == 0) {
-			System.out.println("no keys");
-		} else {
-			//Run a for loop over the entries to get their keys in reverse order.
-			for (int i=0;i<entries.size();i++) {
-				System.out.println(entries.get(i).getKey());
-			}		
+		try (ReadVersion version = pinAll()) {
+			if (version.size() == 0) {
+				out().println("no keys");
+			} else {
+				//Run a for loop over the entries to get their keys in reverse order.
+				for (Entry entry : version) {
+					out().println(entry.getKey());
+				}		
+			}
 		}
 	}
 
@@ -77,11 +239,13 @@ public class CrunchDB {
 	 * Displays all entries in the current state.
 	 */
 	private void listEntries() {
-		if (entries.size()==0) {
-			System.out.println("no entries");
-		} else {
-			System.out.println(Entry.listAllEntries(entries));
-		}	
+		try (ReadVersion version = pinAll()) {
+			if (version.size()==0) {
+				out().println("no entries");
+			} else {
+				out().println(Entry.listAllEntries(version));
+			}	
+		}
 	}
 	
 	/**
@@ -89,9 +253,9 @@ public class CrunchDB {
 	 */
 	private void listSnapshot() {
 		if (snapshots.size()==0) {
-			System.out.println("no snapshots");
+			out().println("no snapshots");
 		} else {
-			System.out.println(Snapshot.listAllSnapshots(snapshots));
+			out().println(Snapshot.listAllSnapshots(snapshots));
 		}
 	}
 
@@ -105,11 +269,13 @@ public class CrunchDB {
 		int index = 0;
 
 		//Run a for loop over the entries to find the values of the key.
-		Entry keyObject = findKey(key);
-		if (keyObject == null) {
-			System.out.println("no such key");
-		} else {
-			System.out.println(keyObject.get());
+		try (ReadVersion version = pin(key)) {
+			Entry keyObject = version.get(0);
+			if (keyObject == null) {
+				out().println("no such key");
+			} else {
+				out().println(keyObject.get());
+			}
 		}
 	}
 	
@@ -125,10 +291,12 @@ public class CrunchDB {
 		Entry keyObject = findKey(key);
 		
 		if (keyObject == null) {
-			System.out.println("no such key");
+			out().println("no such key");
 		}  else {
-			entries.remove(keyObject);
-			System.out.println("ok");
+			synchronized (keyspaceLock) {
+				entries.remove(key);
+			}
+			out().println("ok");
 		}
 	}
 
@@ -138,21 +306,10 @@ public class CrunchDB {
 	 * @param key the key of the entry
 	 */
 	private void purge(String key) {		
-		//Run a loop over the entries to find the corresponding Entry object to the key and remove it.
-		Entry keyEntry = findKey(key);
+		//Remove the key from the current state and, through the key index, from the snapshots that store it.
+		entries.purge(key);
 		
-		if (keyEntry != null) {
-			entries.remove(keyEntry);
-		}
-		
-		//Run a loop over the snapshots in CrunchDB to remove all Entry objects that have the key.
-		for (int k=0;k<snapshots.size();k++) {
-			if (snapshots.get(k).hasKey(key)) {
-				snapshots.get(k).removeKey(key);
-			}
-		}
-		
-		System.out.println("ok");
+		out().println("ok");
 	}
 
 	/**
@@ -161,16 +318,24 @@ public class CrunchDB {
 	 * @param key    the key of the entry
 	 * @param values the values to set
 	 */
-	private void set(String key, List<Integer> values) {
-		Entry keyEntry = findKey(key);
-		
-		if (keyEntry == null) {
-			entries.add(0, new Entry(key, values));
-		} else {
-			keyEntry.set(values);
+	private void set(String key, IntList values) {
+		synchronized (keyspaceLock) {
+			Entry keyEntry = entries.get(key);
+			
+			if (keyEntry == null) {
+				Entry newEntry = new Entry(key, values);
+				newEntry.setStamp(takeStamps(1));
+				entries.addFirst(newEntry);
+			} else if (keyEntry.isShared()) {
+				Entry newEntry = new Entry(key, values);
+				newEntry.setStamp(keyEntry.getStamp());
+				entries.replace(newEntry);
+			} else {
+				keyEntry.set(values);
+			}
 		}
 		
-		System.out.println("ok");
+		out().println("ok");
 	}
 
 	/**
@@ -179,14 +344,14 @@ public class CrunchDB {
 	 * @param key    the key of the entry
 	 * @param values the values to push
 	 */
-	private void push(String key, List<Integer> values) {
-		Entry keyEntry = findKey(key);
+	private void push(String key, IntList values) {
+		Entry keyEntry = findWritableKey(key);
 		
 		if (keyEntry == null) {
-			System.out.println("no such key");
+			out().println("no such key");
 		} else {
 			keyEntry.push(values);
-			System.out.println("ok");
+			out().println("ok");
 		}
 	}
 
@@ -196,14 +361,14 @@ public class CrunchDB {
 	 * @param key    the key of the entry
 	 * @param values the values to append
 	 */
-	private void append(String key, List<Integer> values) {
-		Entry keyEntry = findKey(key);
+	private void append(String key, IntList values) {
+		Entry keyEntry = findWritableKey(key);
 		
 		if (keyEntry == null) {
-			System.out.println("no such key");
+			out().println("no such key");
 		} else {
 			keyEntry.append(values);
-			System.out.println("ok");
+			out().println("ok");
 		}
 		boolean found = false;
 	}
@@ -215,17 +380,17 @@ public class CrunchDB {
 	 * @param index the index to display
 	 */
 	private void pick(String key, int index) {
-		Entry keyEntry = findKey(key);
-		
-		if (keyEntry == null) {
-			System.out.println("no such key");
-		} else {
-			Integer returnValue = keyEntry.pick(index);
+		try (ReadVersion version = pin(key)) {
+			Entry keyEntry = version.get(0);
 			
-			if (returnValue == null) {
-				System.out.println("index out of range");
+			if (keyEntry == null) {
+				out().println("no such key");
 			} else {
-				System.out.println(returnValue);
+				if (keyEntry.hasIndex(index)) {
+					out().println(keyEntry.pick(index));
+				} else {
+					out().println("index out of range");
+				}
 			}
 		}
 	}
@@ -240,14 +405,12 @@ public class CrunchDB {
 		Entry keyEntry = findKey(key);
 		
 		if (keyEntry == null) {
-			System.out.println("no such key");
+			out().println("no such key");
 		} else {
-			Integer returnValue = keyEntry.pluck(index);
-			
-			if (returnValue == null) {
-				System.out.println("index out of range");
+			if (keyEntry.hasIndex(index)) {
+				out().println(findWritableKey(key).pluck(index));
 			} else {
-				System.out.println(returnValue);
+				out().println("index out of range");
 			}
 		}
 	}
@@ -261,18 +424,14 @@ public class CrunchDB {
 		Entry keyEntry = findKey(key);
 		
 		if (keyEntry == null) {
-			System.out.println("no such key");
+			out().println("no such key");
 		} else {
-			Integer returnValue = keyEntry.pop();
-			
-			if (returnValue == null) {
-				System.out.println("nil");
+			if (keyEntry.len() == 0) {
+				out().println("nil");
 			} else {
-				System.out.println(returnValue);
+				out().println(findWritableKey(key).pop());
 			}
 		}
-		Integer returnValue = null;
-		boolean found = false;	
 	}
 
 	/** 
@@ -281,15 +440,14 @@ public class CrunchDB {
 	 * @param id the id of the snapshot
 	 */
 	private void drop(int id) {
-		for (int i=0;i<snapshots.size();i++) {
-			if (snapshots.get(i).getId() == id) {
-				snapshots.remove(i);
-				System.out.println("ok");
-				return;
-			}
-		}
+		Snapshot snapshot = snapshots.remove(id);
 		
-		System.out.println("no such snapshot");
+		if (snapshot == null) {
+			out().println("no such snapshot");
+		} else {
+			snapshot.discard();
+			out().println("ok");
+		}
 	}
 
 	/**
@@ -298,111 +456,220 @@ public class CrunchDB {
 	 * @param id the id of the snapshot
 	 */
 	private void rollback(int id) {
-		int index = 0;
-		boolean found = false;
-		
-		for (int i=0;i<snapshots.size();i++) {
-			if (snapshots.get(i).getId() == id) {
-				entries = new ArrayList<Entry>(snapshots.get(i).rollback());
-				index = i;
-				found = true;
-				break;
-			}
-		}
+		Snapshot snapshot = snapshots.get(id);
 		
-		if (found == false) {
-			System.out.println("no such snapshot");
+		if (snapshot == null) {
+			out().println("no such snapshot");
 		} else {
-			List<Snapshot> newSnapshots = new ArrayList<Snapshot>();
+			Keyspace oldEntries = entries;
+			entries = snapshot.rollback();
+			oldEntries.discard();
 
-			for (int k=index;k<snapshots.size();k++) {
-				newSnapshots.add(snapshots.get(k));
+			//Newer snapshots are deleted from the most recent one down, so none of them is merged into another.
+			for (Snapshot newerSnapshot : snapshots.removeNewerThan(id)) {
+				newerSnapshot.discard();
 			}
 
-			snapshots = newSnapshots;
-			System.out.println("ok");
+			out().println("ok");
 		}
 	}
 
 	/** 
 	 * Replaces current state with a copy of snapshot.
+	 * The copy is a layer over the snapshot, so nothing is copied until an entry is changed.
 	 *
 	 * @param id the id of the snapshot
 	 */
 	private void checkout(int id) {
-		for (int i=0;i<snapshots.size();i++) {
-			if (snapshots.get(i).getId() == id) {
-				ArrayList<Entry> copyEntries = new ArrayList<>();
-
-				for (int k=0;k<snapshots.get(i).rollback().size();k++) {
-					Entry newObject = new Entry(snapshots.get(i).rollback().get(k).getKey(), new ArrayList<Integer>(snapshots.get(i).rollback().get(k).getValues()));
-					copyEntries.add(newObject);
-				}
-				
-				this.entries = copyEntries;
-				System.out.println("ok");
-				return;
-			}
-		}
+		Snapshot snapshot = snapshots.get(id);
 		
-		System.out.println("no such snapshot");
+		if (snapshot == null) {
+			out().println("no such snapshot");
+		} else {
+			Keyspace oldEntries = entries;
+			this.entries = snapshot.rollback();
+			oldEntries.discard();
+			out().println("ok");
+		}
 	}
 
 	/** 
 	 * Saves the current state as a snapshot.
+	 * The snapshot keeps the changes of the current state, which are frozen
+	 * and copied again only when they are next changed, and the current state
+	 * continues as a new layer on top of it.
 	 */
 	private void snapshot() {
-		ArrayList<Entry> copyEntries = new ArrayList<>();
+		Snapshot newSnapshot = Snapshot.of(snapshots.nextId(), entries);
+		snapshots.add(newSnapshot);
+		entries = newSnapshot.rollback();
+
+		out().printf("saved as snapshot %d\n", newSnapshot.getId());
+	}
 
-		for (int i=0;i<entries.size();i++) {
-			copyEntries.add(new Entry(entries.get(i).getKey(), entries.get(i).getValues()));
+	/**
+	 * Saves snapshot to file. Background archives still being written to the
+	 * file are finished first, so they cannot replace it afterwards.
+	 *
+	 * @param id       the id of the snapshot 
+	 * @param filename the name of the file
+	 * @param format   the format of the file
+	 */
+	private void archive(int id, String filename, Archive.Format format) {
+		List<Entry> snapshotEntries = snapshotEntries(id);
+		
+		if (snapshotEntries == null) {
+			out().println("no such snapshot");
+			return;
 		}
 
-		Snapshot newSnapshot = new Snapshot(snapshots.size()+1, copyEntries);
-		snapshots.add(0, newSnapshot);
+		if (archiver != null) {
+			archiver.awaitFile(filename);
+		}
 
-		System.out.printf("saved as snapshot %d\n", snapshots.size());
+		try {
+			Archive.write(snapshotEntries, filename, format);
+			out().println("ok");
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			out().println("could not write file");
+		}
 	}
 
 	/**
-	 * Saves snapshot to file.
+	 * Starts saving snapshot to file on the background I/O thread.
 	 *
 	 * @param id       the id of the snapshot 
 	 * @param filename the name of the file
+	 * @param format   the format of the file
 	 */
-	private void archive(int id, String filename) {
-		boolean found = false;
+	private void backgroundArchive(int id, String filename, Archive.Format format) {
+		List<Entry> snapshotEntries = snapshotEntries(id);
 		
-		for (int i=0;i<snapshots.size();i++) {
-			if (snapshots.get(i).getId() == id) {
-				snapshots.get(i).archive(filename);	
-				found = true;
-				break;
-			}
+		if (snapshotEntries == null) {
+			out().println("no such snapshot");
+			return;
 		}
-		
-		if (found) {
-			System.out.println("ok");
-		} else {
-			System.out.println("no such snapshot");
+
+		if (archiver == null) {
+			archiver = new BackgroundArchiver();
+		}
+		out().printf("archiving as job %d\n", archiver.start(id, snapshotEntries, filename, format).getNumber());
+	}
+
+	/**
+	 * Finds the entries of a snapshot, from most recently added to least
+	 * recently added. The entries are frozen, so they can be read by any thread.
+	 *
+	 * @param  id the id of the snapshot
+	 * @return    the entries, or null if there is no such snapshot
+	 */
+	protected List<Entry> snapshotEntries(int id) {
+		Snapshot snapshot = snapshots.get(id);
+		return (snapshot == null) ? null : snapshot.getEntries().toList();
+	}
+
+	/**
+	 * Displays the background archives and their progress.
+	 */
+	private void listArchives() {
+		if (archiver == null || archiver.list().isEmpty()) {
+			out().println("no archives");
+			return;
+		}
+
+		for (BackgroundArchiver.Job job : archiver.list()) {
+			out().println(job);
+		}
+	}
+
+	/**
+	 * Waits for background archives to finish and closes the log.
+	 */
+	public void close() {
+		if (archiver != null) {
+			archiver.close();
+		}
+
+		if (log != null) {
+			try {
+				log.close();
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+			}
 		}
 	}
 
 	/**
 	 * Loads and restores snapshot from file.
+	 * The current state is left unchanged if the file cannot be loaded.
+	 * Background archives still being written to the file are finished first.
 	 *
 	 * @param filename the name of the file
 	 */
 	private void restore(String filename) {
-		List<Entry> newEntries = Snapshot.restore(filename);
-		entries = newEntries;
+		List<Entry> newEntries;
+
+		if (archiver != null) {
+			archiver.awaitFile(filename);
+		}
+
+		try {
+			newEntries = Snapshot.restore(filename);
+		} catch (NoSuchFileException | FileNotFoundException e) {
+			out().println("no such file");
+			return;
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			out().println("invalid archive");
+			return;
+		}
+
+		adopt(newEntries);
+
+		//The restored entries replace everything logged before them.
+		if (log != null) {
+			try {
+				log.checkpoint(newEntries, LAST_ID_RECORD + snapshots.lastId());
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				out().println("could not write log");
+				return;
+			}
+		}
+		
+		out().println("ok");
+	}
+
+	/**
+	 * Stamps loaded entries in their order and makes them the current state.
+	 */
+	private void adopt(List<Entry> newEntries) {
+		//The first entry of an archive is the most recently added one.
+		long firstStamp = takeStamps(newEntries.size());
+		
+		for (int i=0;i<newEntries.size();i++) {
+			newEntries.get(i).setStamp(firstStamp + newEntries.size() - 1 - i);
+		}
+		restoreEntries(newEntries);
+	}
+
+	/**
+	 * Replaces the current state with the given entries and deletes every snapshot.
+	 *
+	 * @param newEntries the entries, from most recently added to least recently added
+	 */
+	protected void restoreEntries(List<Entry> newEntries) {
+		entries.discard();
+		entries = new Keyspace(keyIndex);
 		
-		for (int i=0;i<snapshots.size();i++) {
-			snapshots.remove(i);
-			i--;
+		for (int i=0;i<newEntries.size();i++) {
+			entries.addLast(newEntries.get(i));
 		}
 		
-		System.out.println("ok");
+		for (Snapshot snapshot : snapshots.clear()) {
+			snapshot.discard();
+		}
 	}
 
 	/**
@@ -411,14 +678,16 @@ public class CrunchDB {
 	 * @param key the key of the entry
 	 */
 	private void min(String key) {
-		Entry keyEntry = findKey(key);
-		
-		if (keyEntry == null) {
-			System.out.println("no such key");
-		} else if (keyEntry.getValues().size() == 0) {
-			System.out.println("nil");
-		} else {
-			System.out.println(keyEntry.min());
+		try (ReadVersion version = pin(key)) {
+			Entry keyEntry = version.get(0);
+			
+			if (keyEntry == null) {
+				out().println("no such key");
+			} else if (keyEntry.len() == 0) {
+				out().println("nil");
+			} else {
+				out().println(keyEntry.min());
+			}
 		}
 	}
 
@@ -428,14 +697,16 @@ public class CrunchDB {
 	 * @param key the of the entry
 	 */
 	private void max(String key) {
-		Entry keyEntry = findKey(key);
-		
-		if (keyEntry == null) {
-			System.out.println("no such key");
-		} else if (keyEntry.getValues().size() == 0) {
-			System.out.println("nil");
-		} else {
-			System.out.println(keyEntry.max());
+		try (ReadVersion version = pin(key)) {
+			Entry keyEntry = version.get(0);
+			
+			if (keyEntry == null) {
+				out().println("no such key");
+			} else if (keyEntry.len() == 0) {
+				out().println("nil");
+			} else {
+				out().println(keyEntry.max());
+			}
 		}
 	}
 
@@ -445,14 +716,16 @@ public class CrunchDB {
 	 * @param key the key of the entry
 	 */
 	private void sum(String key) {
-		Entry keyEntry = findKey(key);
-		
-		if (keyEntry == null) {
-			System.out.println("no such key");
-		} else if (keyEntry.getValues().size() == 0) {
-			System.out.println("nil");
-		} else {
-			System.out.println(keyEntry.sum());
+		try (ReadVersion version = pin(key)) {
+			Entry keyEntry = version.get(0);
+			
+			if (keyEntry == null) {
+				out().println("no such key");
+			} else if (keyEntry.len() == 0) {
+				out().println("nil");
+			} else {
+				out().println(keyEntry.sum());
+			}
 		}
 	}
 
@@ -463,12 +736,14 @@ public class CrunchDB {
 	 * @param key the key of the entry
 	 */
 	private void len(String key) {
-		Entry keyEntry = findKey(key);
-		
-		if (keyEntry == null) {
-			System.out.println("no such key");
-		} else {
-			System.out.println(keyEntry.len());
+		try (ReadVersion version = pin(key)) {
+			Entry keyEntry = version.get(0);
+			
+			if (keyEntry == null) {
+				out().println("no such key");
+			} else {
+				out().println(keyEntry.len());
+			}
 		}
 	}
 
@@ -479,13 +754,13 @@ public class CrunchDB {
 	 * @param key the key of the entry
 	 */
 	private void rev(String key) {
-		Entry keyEntry = findKey(key);
+		Entry keyEntry = findWritableKey(key);
 		
 		if (keyEntry == null) {
-			System.out.println("no such key");
+			out().println("no such key");
 		} else {
 			keyEntry.rev();
-			System.out.println("ok");
+			out().println("ok");
 		}
 	}
 
@@ -495,13 +770,13 @@ public class CrunchDB {
 	 * @param key the key of the entry
 	 */
 	private void uniq(String key) {
-		Entry keyEntry = findKey(key);
+		Entry keyEntry = findWritableKey(key);
 		
 		if (keyEntry == null) {
-			System.out.println("no such key");
+			out().println("no such key");
 		} else {
 			keyEntry.uniq();
-			System.out.println("ok");
+			out().println("ok");
 		}
 	}
 
@@ -511,13 +786,13 @@ public class CrunchDB {
 	 * @param key the key of the entry
 	 */
 	private void sort(String key) {
-		Entry keyEntry = findKey(key);
+		Entry keyEntry = findWritableKey(key);
 		
 		if (keyEntry == null) {
-			System.out.println("no such key");
+			out().println("no such key");
 		} else {
 			keyEntry.sort();
-			System.out.println("ok");
+			out().println("ok");
 		}
 	}
 	
@@ -530,24 +805,24 @@ public class CrunchDB {
 	 * @param keys the keys of the entries
 	 */
 	private void diff(List<String> keys) {
-		List<Entry> diffEntries = new ArrayList<Entry>();
-		int counter = 0;
-		
-		//Loop through keys and entries to create a list of entries that is used by the diff method.
-		for (int i=0;i<keys.size();i++) {
-			for (int k=0;k<entries.size();k++) {
-				if (entries.get(k).getKey().equals(keys.get(i))) {
-					diffEntries.add(entries.get(k));
+		try (ReadVersion version = pin(keys)) {
+			List<Entry> diffEntries = new ArrayList<Entry>();
+			int counter = 0;
+			
+			//Look up each key to create a list of entries that is used by the diff method.
+			for (int i=0;i<keys.size();i++) {
+				Entry keyEntry = version.get(i);
+				if (keyEntry != null) {
+					diffEntries.add(keyEntry);
 					counter++;
-					break;
 				}
 			}
-		}
-		
-		if (counter != keys.size()) {
-			System.out.println("not enough arguments");
-		} else {
-			System.out.println(getOutput(Entry.diff(diffEntries)));	
+			
+			if (counter != keys.size()) {
+				out().println("not enough arguments");
+			} else {
+				out().println(getOutput(SetOperations.diff(diffEntries)));	
+			}
 		}
 	}
 
@@ -558,30 +833,30 @@ public class CrunchDB {
 	 * @param keys the keys of the entries
 	 */
 	private void inter(List<String> keys) {
-		List<Entry> intersectEntries = new ArrayList<Entry>();
-		int counter = 0;
-		
-		//Run a loop over all the keys to find the matching Entry object.
-		for (int i=0;i<keys.size();i++) {
+		try (ReadVersion version = pin(keys)) {
+			List<Entry> intersectEntries = new ArrayList<Entry>();
+			int counter = 0;
 			
-			//Run a loop over the list of entries to find the matching Entry object. If it is found, increment the match counter.
-			for (int k=0;k<entries.size();k++) {
-				if (entries.get(k).getKey().equals(keys.get(i))) {
-					intersectEntries.add(entries.get(k));
+			//Run a loop over all the keys to find the matching Entry object.
+			for (int i=0;i<keys.size();i++) {
+				
+				//Look up the matching Entry object. If it is found, increment the match counter.
+				Entry keyEntry = version.get(i);
+				if (keyEntry != null) {
+					intersectEntries.add(keyEntry);
 					counter++;
-					break;
 				}
+				
 			}
 			
-		}
-		
-		if (counter == keys.size()) {
+			if (counter == keys.size()) {
+				
+				out().println(getOutput(SetOperations.inter(intersectEntries)));
+			} else {
+				out().println("not enough arguments");
+			}
 			
-			System.out.println(getOutput(Entry.inter(intersectEntries)));
-		} else {
-			System.out.println("not enough arguments");
 		}
-		
 	}
 
 	/**
@@ -591,29 +866,29 @@ public class CrunchDB {
 	 * @param keys the keys of the entries
 	 */
 	private void union(List<String> keys) {
-		List<Entry> unionEntries = new ArrayList<Entry>();
-		int counter = 0;
-		
-		//Run a loop over all the keys to find the matching Entry object.
-		for (int i=0;i<keys.size();i++) {
+		try (ReadVersion version = pin(keys)) {
+			List<Entry> unionEntries = new ArrayList<Entry>();
+			int counter = 0;
 			
-			//Run a loop over the list of entries to find the matching Entry object. If it is found, increment the match counter.
-			for (int k=0;k<entries.size();k++) {
-				if (entries.get(k).getKey().equals(keys.get(i))) {
-					unionEntries.add(entries.get(k));
+			//Run a loop over all the keys to find the matching Entry object.
+			for (int i=0;i<keys.size();i++) {
+				
+				//Look up the matching Entry object. If it is found, increment the match counter.
+				Entry keyEntry = version.get(i);
+				if (keyEntry != null) {
+					unionEntries.add(keyEntry);
 					counter++;
-					break;
 				}
+				
+			}
+			
+			if (counter == keys.size() && keys.size() >= 2) {
+				out().println(getOutput(SetOperations.union(unionEntries)));
+			} else {
+				out().println("not enough arguments");
 			}
 			
 		}
-		
-		if (counter == keys.size() && keys.size() >= 2) {
-			System.out.println(getOutput(Entry.union(unionEntries)));
-		} else {
-			System.out.println("not enough arguments");
-		}
-		
 	}
 
 	/** 
@@ -623,51 +898,65 @@ public class CrunchDB {
 	 * @param keys the keys of the entries
 	 */
 	private void cartprod(List<String> keys) {
-		List<Entry> cartprodEntries = new ArrayList<Entry>();
-		int counter = 0;
-		
-		//Run a loop over all the keys to find the matching Entry object.
-		for (int i=0;i<keys.size();i++) {
+		try (ReadVersion version = pin(keys)) {
+			List<Entry> cartprodEntries = new ArrayList<Entry>();
+			int counter = 0;
 			
-			//Run a loop over the list of entries to find the matching Entry object. If it is found, increment the match counter.
-			for (int k=0;k<entries.size();k++) {
-				if (entries.get(k).getKey().equals(keys.get(i))) {
-					cartprodEntries.add(entries.get(k));
+			//Run a loop over all the keys to find the matching Entry object.
+			for (int i=0;i<keys.size();i++) {
+				
+				//Look up the matching Entry object. If it is found, increment the match counter.
+				Entry keyEntry = version.get(i);
+				if (keyEntry != null) {
+					cartprodEntries.add(keyEntry);
 					counter++;
-					break;
 				}
+				
+			}
+			
+			if (counter == keys.size()) {
+				new CartesianProduct(cartprodEntries).writeTo(out());
+			} else {
+				out().println("no such key");
 			}
 			
 		}
-		
-		if (counter == keys.size()) {
-			List<List<Integer>> cartprodList = Entry.cartprod(cartprodEntries);
-			StringBuilder outputString= new StringBuilder();
-			outputString.append("[ ");
-
-			for(int i=0;i<cartprodList.size();i++) {
-				outputString.append("[");
-				for (int k=0;k<cartprodList.get(i).size();k++) {
-					outputString.append(cartprodList.get(i).get(k));
-					if (k == cartprodList.get(i).size()-1) {
-						outputString.append("]");
-						break;
-					}
-					outputString.append(" ");
-				}
-
-				if (i == cartprodList.size()-1) {
-					outputString.append(" ]");
-					break;
-				}
+	}
 
-				outputString.append(" ");
+	/**
+	 * Checks if a key exists in the current state.
+	 *
+	 * @param  key the key of the entry
+	 * @return     true if the key exists
+	 */
+	private boolean hasKey(String key) {
+		try (ReadVersion version = pin(key)) {
+			return version.get(0) != null;
+		}
+	}
+
+	/** 
+	 * Displays the number of tuples in the cartesian product of the sets.
+	 * Needs at least two keys.
+	 *
+	 * @param keys the keys of the entries
+	 */
+	private void cartprodCount(List<String> keys) {
+		try (ReadVersion version = pin(keys)) {
+			List<Entry> cartprodEntries = new ArrayList<Entry>();
+			
+			//Look up each key, stopping at the first one that does not exist.
+			for (int i=0;i<keys.size();i++) {
+				Entry keyEntry = version.get(i);
+				if (keyEntry == null) {
+					out().println("no such key");
+					return;
+				}
+				cartprodEntries.add(keyEntry);
 			}
-			System.out.println(outputString);
-		} else {
-			System.out.println("no such key");
+			
+			out().println(new CartesianProduct(cartprodEntries).count());
 		}
-		
 	}
 
 	private static final String HELP =
@@ -677,6 +966,7 @@ public class CrunchDB {
 		"LIST KEYS       displays all keys in current state\n"+
 		"LIST ENTRIES    displays all entries in current state\n"+
 		"LIST SNAPSHOTS  displays all snapshots in the database\n"+
+		"LIST ARCHIVES   displays background archives and their progress\n"+
 		"\n"+
 		"GET <key>    displays entry values\n"+
 		"DEL <key>    deletes entry from current state\n"+
@@ -695,8 +985,9 @@ public class CrunchDB {
 		"CHECKOUT <id>  replaces current state with a copy of snapshot\n"+
 		"SNAPSHOT       saves the current state as a snapshot\n"+
 		"\n"+
-		"ARCHIVE <id> <filename> saves snapshot to file\n"+
-		"RESTORE <filename> loads snapshot from file\n"+
+		"ARCHIVE <id> <filename> [TEXT|BINARY|VARINT|COMPRESSED] saves snapshot to file\n"+
+		"BGARCHIVE <id> <filename> [TEXT|BINARY|VARINT|COMPRESSED] saves snapshot to file in the background\n"+
+		"RESTORE <filename> loads snapshot from file of any format\n"+
 		"\n"+
 		"MIN <key>  displays minimum value\n"+
 		"MAX <key>  displays maximum value\n"+
@@ -710,420 +1001,566 @@ public class CrunchDB {
 		"DIFF <key> <key ...>   displays set difference of values in keys\n"+
 		"INTER <key> <key ...>  displays set intersection of values in keys\n"+
 		"UNION <key> <key ...>  displays set union of values in keys\n"+
-		"CARTPROD <key> <key ...>  displays set union of values in keys";
+		"CARTPROD <key> <key ...>  displays cartesian product of values in keys\n"+
+		"CARTPROD COUNT <key> <key ...>  displays number of tuples in cartesian product, unless COUNT is a key";
 	
-	public static void bye() {
-		System.out.println("bye");
+	public void bye() {
+		out().println("bye");
 	}
 	
-	public static void help() {
-		System.out.println(HELP);
+	public void help() {
+		out().println(HELP);
 	}
 	
 	
-public static void main(String[] args) {
-		/* Main function of the database that runs all the methods. It creates a new database and accepts user input. */
-		CrunchDB newDatabase = new CrunchDB();
-		Scanner userInput = new Scanner(System.in);
-		System.out.print("> ");
+	/**
+	 * Runs one command line and writes its output.
+	 *
+	 * @param  line the command line
+	 * @return      false if the command was BYE
+	 */
+	public boolean execute(String line) {
+		Tokenizer tokens = tokenizer.get();
+		tokens.tokenize(line);
+		return execute(tokens, line);
+	}
+	
+	/**
+	 * Runs one command line given as UTF-8 bytes and writes its output.
+	 *
+	 * @param  line  the bytes holding the command line
+	 * @param  start the index of the first byte of the line
+	 * @param  end   the index after the last byte of the line
+	 * @return       false if the command was BYE
+	 */
+	public boolean execute(byte[] line, int start, int end) {
+		Tokenizer tokens = tokenizer.get();
+		tokens.tokenize(line, start, end);
+		return execute(tokens, null);
+	}
+	
+	private boolean execute(Tokenizer tokens, String line) {
+		Command command = Command.find(tokens, 0);
+		int count = tokens.count();
 		
-		while (userInput.hasNextLine()) {
-			
-			
-			
-			String[] newUserInput = userInput.nextLine().trim().split(" ");
-			boolean hasTwoInputs = false;
-			boolean hasAllInputs = false;
-			
-			if (newUserInput.length == 2) {
-				hasTwoInputs = true;
-			} else if (newUserInput.length >= 3) {
-				hasAllInputs = true;
+		//An empty line does nothing, any other unknown command is invalid.
+		if (command == null) {
+			if (count > 1 || tokens.length(0) > 0) {
+				out().println("invalid command");
+			}
+			return true;
+		}
+		
+		if (log == null || !command.isLogged()) {
+			return run(command, tokens);
+		}
+		
+		long sequence;
+		boolean durable = true;
+		
+		try {
+			sequence = log.append((line != null) ? line : tokens.line());
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			out().println("could not write log");
+			return true;
+		}
+		
+		try {
+			log.awaitDurable(sequence);
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			durable = false;
+		}
+		
+		//Commands on different keys may run at once, but they change the database in the order they were logged.
+		log.awaitTurn(sequence);
+		
+		try {
+			if (!durable) {
+				out().println("could not write log");
+				return true;
 			}
+			return run(command, tokens);
+		} finally {
+			log.applied(sequence);
+		}
+	}
+	
+	private boolean run(Command command, Tokenizer tokens) {
+		int count = tokens.count();
+		boolean hasTwoInputs = (count == 2);
+		boolean hasAllInputs = (count >= 3);
+		
+		switch (command) {
 			
-			if (newUserInput[0].toLowerCase().equals("bye")) {
-				if (newUserInput.length == 1) {
+			case BYE:
+				if (count == 1) {
 					bye();
-					break;
+					return false;
 				} else {
-					System.out.println("invalid command");
+					out().println("invalid command");
 				}
-			}
+				
+				break;
+				
+			case HELP:
+				if (count == 1) {
+					help();
+				} else {
+					out().println("invalid command");
+				}
+				
+				break;
 			
-			switch (newUserInput[0].toLowerCase()) {
-					
-				case "help":
-					if (newUserInput.length == 1) {
-						help();
-					} else {
-						System.out.println("invalid command");
+			case LIST:
+				if (hasTwoInputs) {
+					if (tokens.is(1, "keys")) {
+						listKeys();
+					} else if (tokens.is(1, "entries")) {
+						listEntries();
+					} else if (tokens.is(1, "snapshots")) {
+						listSnapshot();
+					} else if (tokens.is(1, "archives")) {
+						listArchives();
 					}
-					
-					break;
+				} else {
+					out().println("invalid command");
+				}
 				
-				case "list":
-					if (hasTwoInputs) {
-						
-						switch (newUserInput[1].toLowerCase()) {
-								
-							case "keys":
-								newDatabase.listKeys();
-								break;
-
-							case "entries":
-								newDatabase.listEntries();
-								break;
-
-							case "snapshots":
-								newDatabase.listSnapshot();
-								break;
-						} 
-					} else {
-						System.out.println("invalid command");
-					}
-					
-					break;
-					
-				case "get":
-					if (hasTwoInputs) {
-						newDatabase.get(newUserInput[1]);	
-					} else {
-						System.out.println("invalid command");
-					}
-					
-					break;
-					
-				case "del":
-					if (hasTwoInputs) {
-						newDatabase.del(newUserInput[1]);
-					} else {
-						System.out.println("invalid command");
-					}
-					
-					break;
-					
-				case "purge":
-					if (hasTwoInputs) {
-						newDatabase.purge(newUserInput[1]);	
-					} else {
-						System.out.println("invalid command");
-					}
-					
-					break;
-					
-				case "set":
-					if (hasAllInputs) {
-						String key = newUserInput[1];
-						ArrayList<Integer> userValues = new ArrayList<>();
-						
-						for (int i=2;i<newUserInput.length;i++) {
-							try {
-								Integer newNumber = Integer.parseInt(newUserInput[i]);
-								userValues.add(newNumber);
-							} catch (NumberFormatException e) {
-								continue;
-							}
-						}
-
-						newDatabase.set(key, userValues);	
-					} else {
-						System.out.println("invalid command");
-					}
-					
-					break;
+				break;
 				
-				case "push":
-					if (hasAllInputs) {
-						String key = newUserInput[1];
-						ArrayList<Integer> userValues = new ArrayList<>();
-						
-						for (int i=2;i<newUserInput.length;i++) {
-							try {
-								Integer newNumber = Integer.parseInt(newUserInput[i]);
-								userValues.add(newNumber);
-							} catch (NumberFormatException e) {
-								continue;
-							}
-						}
-						
-						newDatabase.push(key, userValues);	
-					} else {
-						System.out.println("invalid command");
-					}
-					
-					break;
+			case GET:
+				if (hasTwoInputs) {
+					get(tokens.token(1));
+				} else {
+					out().println("invalid command");
+				}
 				
-				case "append":
-					if (hasAllInputs) {
-						String key = newUserInput[1];
-						ArrayList<Integer> userValues = new ArrayList<>();
-						
-						for (int i=2;i<newUserInput.length;i++) {
-							try {
-								Integer newNumber = Integer.parseInt(newUserInput[i]);
-								userValues.add(newNumber);
-							} catch (NumberFormatException e) {
-								continue;
-							}
-						}
-						
-						newDatabase.append(key, userValues);	
-					} else {
-						System.out.println("invalid command");
-					}
-					
-					break;
-					
-				case "pick":
-					if (hasAllInputs) {
-						String key = newUserInput[1];
-						Integer index;
-						
-						try {
-							index = Integer.parseInt(newUserInput[2]);
-						} catch (NumberFormatException e) {
-							break;
-						}
-						
-						newDatabase.pick(key, index);	
-					} else {
-						System.out.println("invalid command");
-					}
-					
-					break;
+				break;
 				
-				case "pluck":
-					if (hasAllInputs) {
-						String key = newUserInput[1];
-						Integer index;
-						
-						try {
-							index = Integer.parseInt(newUserInput[2]);
-						} catch (NumberFormatException e) {
-							break;
-						}
-						
-						newDatabase.pluck(key, index);
-					} else {
-						System.out.println("invalid command");
-					}
-					
-					break;
+			case DEL:
+				if (hasTwoInputs) {
+					del(tokens.token(1));
+				} else {
+					out().println("invalid command");
+				}
+				
+				break;
+				
+			case PURGE:
+				if (hasTwoInputs) {
+					purge(tokens.token(1));
+				} else {
+					out().println("invalid command");
+				}
+				
+				break;
+				
+			case SET:
+			case PUSH:
+			case APPEND:
+				if (hasAllInputs) {
+					//Values that are not numbers are skipped. The list is reused, as entries copy their values.
+					IntList userValues = commandValues.get();
+					tokens.numbers(2, userValues);
 					
-				case "pop":
-					if (hasTwoInputs) {
-						newDatabase.pop(newUserInput[1]);
+					if (command == Command.SET) {
+						set(tokens.token(1), userValues);
+					} else if (command == Command.PUSH) {
+						push(tokens.token(1), userValues);
 					} else {
-						System.out.println("invalid command");
+						append(tokens.token(1), userValues);
 					}
+				} else {
+					out().println("invalid command");
+				}
+				
+				break;
+				
+			case PICK:
+			case PLUCK:
+				if (hasAllInputs) {
+					long index = tokens.number(2);
 					
-					break;
-					
-				case "drop":
-					if (hasTwoInputs) {
-						try {
-							Integer snapshotId = Integer.parseInt(newUserInput[1]);
-							newDatabase.drop(snapshotId);
-						} catch (NumberFormatException e) {
-							System.out.println("id is not a valid number");
-							break;
-						}
-					} else {
-						System.out.println("invalid command");
+					if (index == Tokenizer.NOT_A_NUMBER) {
+						break;
 					}
 					
-					break;
-					
-				case "rollback":
-					if (hasTwoInputs) {
-						try {
-							Integer snapshotsId = Integer.parseInt(newUserInput[1]);
-							newDatabase.rollback(snapshotsId);
-						} catch (NumberFormatException e) {
-							System.out.println("id is not a valid number");
-							break;
-						}
+					if (command == Command.PICK) {
+						pick(tokens.token(1), (int) index);
 					} else {
-						System.out.println("invalid command");
+						pluck(tokens.token(1), (int) index);
 					}
+				} else {
+					out().println("invalid command");
+				}
+				
+				break;
+				
+			case POP:
+				if (hasTwoInputs) {
+					pop(tokens.token(1));
+				} else {
+					out().println("invalid command");
+				}
+				
+				break;
+				
+			case DROP:
+			case ROLLBACK:
+			case CHECKOUT:
+				if (hasTwoInputs) {
+					long snapshotId = tokens.number(1);
 					
-					break;
-					
-				case "checkout":
-					if (hasTwoInputs) {
-						try {
-							Integer snapshotsId = Integer.parseInt(newUserInput[1]);
-							newDatabase.checkout(snapshotsId);
-						} catch (NumberFormatException e) {
-							System.out.println("id is not a valid number");
-							break;
-						}
+					if (snapshotId == Tokenizer.NOT_A_NUMBER) {
+						out().println("id is not a valid number");
+					} else if (command == Command.DROP) {
+						drop((int) snapshotId);
+					} else if (command == Command.ROLLBACK) {
+						rollback((int) snapshotId);
 					} else {
-						System.out.println("invalid command");
+						checkout((int) snapshotId);
 					}
-					
-					break;
-					
-				case "snapshot":
-					if (newUserInput.length == 1) {
-						newDatabase.snapshot();
-					} else {
-						System.out.println("invalid command");
-					} 
-					
-					break;
+				} else {
+					out().println("invalid command");
+				}
+				
+				break;
+				
+			case SNAPSHOT:
+				if (count == 1) {
+					snapshot();
+				} else {
+					out().println("invalid command");
+				} 
 				
-				case "archive":
-					if (hasAllInputs) {
-						try {
-							Integer snapshotId = Integer.parseInt(newUserInput[1]);
-							newDatabase.archive(snapshotId, newUserInput[2]);
-						} catch (NumberFormatException e) {
-							System.out.println("id is not a valid number");
+				break;
+			
+			case ARCHIVE:
+			case BGARCHIVE:
+				if (hasAllInputs) {
+					Archive.Format format = Archive.Format.TEXT;
+
+					if (count >= 4) {
+						format = Archive.Format.parse(tokens.token(3));
+
+						if (format == null) {
+							out().println("invalid command");
 							break;
 						}
-					} else {
-						System.out.println("invalid command");
 					}
+
+					long snapshotId = tokens.number(1);
 					
-					break;
-					
-				case "restore":
-					if (hasTwoInputs) {
-						newDatabase.restore(newUserInput[1]);
-					} else {
-						System.out.println("invalid command");
-					}
-					
-					break;
-					
-				case "min":
-					if (hasTwoInputs) {
-						newDatabase.min(newUserInput[1]);
-					} else {
-						System.out.println("invalid command");
-					}
-					
-					break;
-					
-				case "max":
-					if (hasTwoInputs) {
-						newDatabase.max(newUserInput[1]);
-					} else {
-						System.out.println("invalid command");
-					}
-					
-					break;
-					
-				case "sum":
-					if (hasTwoInputs) {
-						newDatabase.sum(newUserInput[1]);
-					} else {
-						System.out.println("invalid command");
-					}
-					
-					break;
-					
-				case "len":
-					if (hasTwoInputs) {
-						newDatabase.len(newUserInput[1]);
+					if (snapshotId == Tokenizer.NOT_A_NUMBER) {
+						out().println("id is not a valid number");
+					} else if (command == Command.BGARCHIVE) {
+						backgroundArchive((int) snapshotId, tokens.token(2), format);
 					} else {
-						System.out.println("invalid command");
+						archive((int) snapshotId, tokens.token(2), format);
 					}
-					
-					break;
+				} else {
+					out().println("invalid command");
+				}
 				
-				case "rev":
-					if (hasTwoInputs) {
-						newDatabase.rev(newUserInput[1]);
-					} else {
-						System.out.println("invalid command");
-					}
-					
-					break;
-					
-				case "uniq":
-					if (hasTwoInputs) {
-						newDatabase.uniq(newUserInput[1]);
-					} else {
-						System.out.println("invalid command");
-					}
-					
-					break;
-					
-				case "sort":
-					if (hasTwoInputs) {
-						newDatabase.sort(newUserInput[1]);
-					} else {
-						System.out.println("invalid command");
-					}
-					
-					break;
+				break;
 				
-				case "diff":
-					if (hasAllInputs) {
-						ArrayList<String> allKeys = new ArrayList<>();
-						
-						for (int i=1;i<newUserInput.length;i++) {
-							allKeys.add(newUserInput[i]);
-						}
-						
-						newDatabase.diff(allKeys);
-					} else {
-						System.out.println("invalid command");
-					}
-					
-					break;
-					
-				case "inter":
-					if (hasAllInputs) {
-						ArrayList<String> allKeys = new ArrayList<>();
-						
-						for (int i=1;i<newUserInput.length;i++) {
-							allKeys.add(newUserInput[i]);
-						}
-						
-						newDatabase.inter(allKeys);
-					} else {
-						System.out.println("invalid command");
-					}
-					
-					break;
+			case RESTORE:
+				if (hasTwoInputs) {
+					restore(tokens.token(1));
+				} else {
+					out().println("invalid command");
+				}
 				
-				case "union":
-					if (hasAllInputs) {
-						ArrayList<String> allKeys = new ArrayList<>();
-						
-						for (int i=1;i<newUserInput.length;i++) {
-							allKeys.add(newUserInput[i]);
-						}
-						
-						newDatabase.union(allKeys);
-					} else {
-						System.out.println("invalid command");
+				break;
+				
+			case MIN:
+				if (hasTwoInputs) {
+					min(tokens.token(1));
+				} else {
+					out().println("invalid command");
+				}
+				
+				break;
+				
+			case MAX:
+				if (hasTwoInputs) {
+					max(tokens.token(1));
+				} else {
+					out().println("invalid command");
+				}
+				
+				break;
+				
+			case SUM:
+				if (hasTwoInputs) {
+					sum(tokens.token(1));
+				} else {
+					out().println("invalid command");
+				}
+				
+				break;
+				
+			case LEN:
+				if (hasTwoInputs) {
+					len(tokens.token(1));
+				} else {
+					out().println("invalid command");
+				}
+				
+				break;
+			
+			case REV:
+				if (hasTwoInputs) {
+					rev(tokens.token(1));
+				} else {
+					out().println("invalid command");
+				}
+				
+				break;
+				
+			case UNIQ:
+				if (hasTwoInputs) {
+					uniq(tokens.token(1));
+				} else {
+					out().println("invalid command");
+				}
+				
+				break;
+				
+			case SORT:
+				if (hasTwoInputs) {
+					sort(tokens.token(1));
+				} else {
+					out().println("invalid command");
+				}
+				
+				break;
+			
+			case DIFF:
+				if (hasAllInputs) {
+					diff(tokens.tokens(1));
+				} else {
+					out().println("invalid command");
+				}
+				
+				break;
+				
+			case INTER:
+				if (hasAllInputs) {
+					inter(tokens.tokens(1));
+				} else {
+					out().println("invalid command");
+				}
+				
+				break;
+			
+			case UNION:
+				if (hasAllInputs) {
+					union(tokens.tokens(1));
+				} else {
+					out().println("invalid command");
+				}
+				
+				break;
+				
+			case CARTPROD:
+				//A key named count keeps the line a product, as it was before CARTPROD COUNT existed.
+				if (hasAllInputs && count >= 4 && tokens.is(1, "count") && !hasKey(tokens.token(1))) {
+					cartprodCount(tokens.tokens(2));
+				} else if (hasAllInputs) {
+					cartprod(tokens.tokens(1));
+				} else {
+					out().println("invalid command");
+				}
+				
+				break;
+		}
+		
+		return true;
+	}
+
+	/**
+	 * Serves the database over TCP until the process is stopped, then
+	 * closes it.
+	 *
+	 * @param database the database to serve
+	 * @param port     the port to listen on
+	 * @param blocking true for a thread per connection instead of a selector
+	 */
+	private static void serve(CrunchDB database, int port, boolean blocking) {
+		Server server;
+		
+		try {
+			server = blocking ? new BlockingServer(new LockedDatabase(database), port) : new CrunchServer(database, port);
+		} catch (IOException e) {
+			System.err.println("could not listen on port " + port + ": " + e.getMessage());
+			database.close();
+			return;
+		}
+		
+		serve(server, database::close);
+	}
+	
+	/**
+	 * Serves a sharded database over TCP with a thread per connection until
+	 * the process is stopped, then closes it.
+	 *
+	 * @param database the database to serve
+	 * @param port     the port to listen on
+	 */
+	private static void serve(ShardedDatabase database, int port) {
+		Server server;
+		
+		try {
+			server = new BlockingServer(database, port);
+		} catch (IOException e) {
+			System.err.println("could not listen on port " + port + ": " + e.getMessage());
+			database.close();
+			return;
+		}
+		
+		serve(server, database::close);
+	}
+	
+	private static void serve(Server server, Runnable close) {
+		Thread serving = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			server.stop();
+			
+			try {
+				serving.join();
+			} catch (InterruptedException e) {
+			}
+		}));
+		System.err.println("listening on port " + server.getPort());
+		
+		try {
+			server.run();
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+		} finally {
+			close.run();
+		}
+	}
+	
+public static void main(String[] args) {
+		/* Main function of the database that runs all the methods. It creates a new database and accepts user input. */
+		CrunchDB newDatabase = new CrunchDB();
+		WriteAheadLog log = null;
+		Path logFile = null;
+		WriteAheadLog.SyncPolicy policy = WriteAheadLog.SyncPolicy.ALWAYS;
+		long intervalMillis = 0;
+		int port = -1;
+		boolean blocking = false;
+		int shards = 0;
+		
+		//Startup options: --wal <file>, --fsync always|os|<millis>, --listen <port>, --blocking and --shards <count>.
+		for (int i=0;i<args.length;i++) {
+			if (args[i].equals("--blocking")) {
+				blocking = true;
+			} else if (args[i].equals("--shards") && i + 1 < args.length) {
+				try {
+					shards = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					shards = 0;
+				}
+				
+				if (shards < 1) {
+					System.err.println("invalid --shards count " + args[i]);
+					return;
+				}
+			} else if (args[i].equals("--listen") && i + 1 < args.length) {
+				try {
+					port = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					port = -1;
+				}
+				
+				if (port < 0 || port > 65535) {
+					System.err.println("invalid --listen port " + args[i]);
+					return;
+				}
+			} else if (args[i].equals("--wal") && i + 1 < args.length) {
+				logFile = Paths.get(args[++i]);
+			} else if (args[i].equals("--fsync") && i + 1 < args.length) {
+				String value = args[++i].toLowerCase();
+				
+				if (value.equals("always")) {
+					policy = WriteAheadLog.SyncPolicy.ALWAYS;
+				} else if (value.equals("os")) {
+					policy = WriteAheadLog.SyncPolicy.OS;
+				} else {
+					try {
+						intervalMillis = Long.parseLong(value);
+					} catch (NumberFormatException e) {
+						intervalMillis = 0;
 					}
 					
-					break;
-					
-				case "cartprod":
-					if (hasAllInputs) {
-						ArrayList<String> allKeys = new ArrayList<>();
-						
-						for (int i=1;i<newUserInput.length;i++) {
-							allKeys.add(newUserInput[i]);
-						}
-						
-						newDatabase.cartprod(allKeys);
-					} else {
-						System.out.println("invalid command");
+					if (intervalMillis <= 0) {
+						System.err.println("invalid --fsync value " + value);
+						return;
 					}
-					
-					break;
+					policy = WriteAheadLog.SyncPolicy.INTERVAL;
+				}
+			} else {
+				System.err.println("usage: java CrunchDB [--wal <file>] [--fsync always|os|<millis>] [--listen <port> [--blocking]] [--shards <count>]");
+				return;
+			}
+		}
+		
+		if (shards > 0) {
+			if (logFile != null) {
+				System.err.println("--wal cannot be used with --shards");
+				return;
+			}
+			ShardedDatabase sharded = new ShardedDatabase(shards);
+			
+			if (port >= 0) {
+				serve(sharded, port);
+				return;
 			}
 			
-			System.out.print("\n> ");
+			try {
+				sharded.run(new BufferedReader(new InputStreamReader(System.in)), System.out);
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+			}
+			sharded.close();
+			return;
 		}
-
+		
+		if (logFile != null) {
+			try {
+				log = WriteAheadLog.open(logFile, policy, intervalMillis, newDatabase);
+			} catch (IOException e) {
+				System.err.println("could not open log " + logFile + ": " + e.getMessage());
+				return;
+			}
+			newDatabase.setLog(log);
+		}
+		
+		if (port >= 0) {
+			serve(newDatabase, port, blocking);
+			return;
+		}
+		
+		LineReader userInput = new LineReader(System.in);
+		System.out.print("> ");
+		
+		try {
+			while (userInput.next()) {
+				if (!newDatabase.execute(userInput.buffer(), userInput.lineStart(), userInput.lineEnd())) {
+					break;
+				}
+				
+				System.out.print("\n> ");
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
+		
+		newDatabase.close();
 	}
 }
-
@@ -0,0 +1,378 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * CrunchServer serves one database to many TCP connections from a single
+ * thread, using a non-blocking Selector.
+ *
+ * Each connection speaks the same protocol as the command line: the server
+ * sends "> ", and for every line received it runs the command and sends its
+ * output followed by "\n> ". BYE ends the connection, not the server.
+ * Clients may send many lines without waiting for replies; commands run and
+ * reply in the order they arrive. Commands from all connections run on the
+ * selector thread, one at a time, so the database needs no locking.
+ *
+ * A connection whose replies are not being read stops being read from until
+ * its pending replies drop below MAX_PENDING_OUTPUT. The output of a command
+ * goes straight into the replies of its connection, and is sent to the
+ * socket in chunks while the command runs, as far as the socket accepts it.
+ */
+
+public class CrunchServer implements Server {
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int MAX_PENDING_OUTPUT = 1 << 20;
+	private static final byte[] PROMPT = "> ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] NEXT_PROMPT = "\n> ".getBytes(StandardCharsets.US_ASCII);
+
+	private final CrunchDB database;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final ByteBuffer readBuffer;
+	private final ByteBuffer writeBuffer;
+	private final byte[] chunk;
+	private final ReplyStream output;
+	private final PrintStream printer;
+	private volatile boolean running;
+
+	/**
+	 * Opens the server socket. Connections are accepted once run is called.
+	 *
+	 * @param  database    the database to serve
+	 * @param  port        the port to listen on, or 0 for any free port
+	 * @throws IOException if the socket cannot be opened
+	 */
+	public CrunchServer(CrunchDB database, int port) throws IOException {
+		this.database = database;
+		this.selector = Selector.open();
+		this.server = ServerSocketChannel.open();
+		this.server.bind(new InetSocketAddress(port), 1024);
+		this.server.configureBlocking(false);
+		this.server.register(selector, SelectionKey.OP_ACCEPT);
+		this.readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		this.writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		this.chunk = new byte[BUFFER_SIZE];
+		this.output = new ReplyStream();
+		this.printer = new PrintStream(output, false, StandardCharsets.UTF_8);
+		this.running = true;
+	}
+
+	/**
+	 * Finds the port the server is listening on.
+	 *
+	 * @return the port
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Serves connections until stop is called.
+	 *
+	 * @throws IOException if the selector fails
+	 */
+	public void run() throws IOException {
+		database.setOutput(printer);
+
+		try {
+			while (running) {
+				selector.select();
+				Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+
+				while (selected.hasNext()) {
+					SelectionKey key = selected.next();
+					selected.remove();
+
+					if (!key.isValid()) {
+						continue;
+					}
+
+					try {
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							Connection connection = (Connection) key.attachment();
+
+							if (key.isReadable()) {
+								connection.read();
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.write();
+							}
+						}
+					} catch (IOException e) {
+						//A failed connection is dropped without affecting the others.
+						closeQuietly(key);
+					}
+				}
+			}
+		} catch (ClosedSelectorException e) {
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				closeQuietly(key);
+			}
+			selector.close();
+		}
+	}
+
+	/**
+	 * Makes run return after the commands already running have finished.
+	 */
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+
+		while ((channel = server.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			Connection connection = new Connection(channel);
+			connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+			connection.send(PROMPT, 0, PROMPT.length);
+			connection.write();
+		}
+	}
+
+	private static void closeQuietly(SelectionKey key) {
+		key.cancel();
+
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * ReplyStream adds the output of the running command to the replies of
+	 * its connection.
+	 */
+	private static final class ReplyStream extends OutputStream {
+		private Connection connection;
+
+		@Override
+		public void write(int b) {
+			connection.send(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) {
+			connection.send(bytes, offset, length);
+		}
+	}
+
+	/**
+	 * Connection holds the unread input and the unsent replies of one client.
+	 */
+	private final class Connection {
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private byte[] input;
+		private int inputStart;
+		private int inputEnd;
+		private int scanned;
+		private byte[] pending;
+		private int pendingStart;
+		private int pendingEnd;
+		private boolean endOfInput;
+		private boolean closing;
+		private boolean producing;
+		private IOException failure;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+			this.input = new byte[1024];
+			this.pending = new byte[1024];
+		}
+
+		/**
+		 * Reads what the client sent and runs every complete line.
+		 */
+		void read() throws IOException {
+			readBuffer.clear();
+			int read = channel.read(readBuffer);
+
+			if (read < 0) {
+				endOfInput = true;
+			} else if (read > 0) {
+				readBuffer.flip();
+				readBuffer.get(chunk, 0, read);
+				receive(chunk, read);
+			}
+
+			runCommands();
+			write();
+		}
+
+		/**
+		 * Sends as many pending replies as the socket accepts, then runs any
+		 * commands that were held back while the replies piled up.
+		 */
+		void write() throws IOException {
+			while (pendingStart < pendingEnd && drain()) {
+				runCommands();
+			}
+
+			if (pendingStart == pendingEnd && closing) {
+				closeQuietly(key);
+				return;
+			}
+			updateInterest();
+		}
+
+		/**
+		 * Sends pending replies until they are all sent or the socket is full.
+		 *
+		 * @return true if all the pending replies were sent
+		 */
+		private boolean drain() throws IOException {
+			while (pendingStart < pendingEnd) {
+				writeBuffer.clear();
+				int length = Math.min(writeBuffer.capacity(), pendingEnd - pendingStart);
+				writeBuffer.put(pending, pendingStart, length);
+				writeBuffer.flip();
+				int written = channel.write(writeBuffer);
+				pendingStart += written;
+
+				if (written < length) {
+					return false;
+				}
+			}
+			pendingStart = 0;
+			pendingEnd = 0;
+			return true;
+		}
+
+		private void receive(byte[] bytes, int length) {
+			if (inputEnd + length > input.length) {
+				int used = inputEnd - inputStart;
+				System.arraycopy(input, inputStart, input, 0, used);
+				scanned -= inputStart;
+				inputStart = 0;
+				inputEnd = used;
+
+				if (used + length > input.length) {
+					input = Arrays.copyOf(input, Math.max(input.length * 2, used + length));
+				}
+			}
+			System.arraycopy(bytes, 0, input, inputEnd, length);
+			inputEnd += length;
+		}
+
+		/**
+		 * Runs the complete lines of input in order, as long as the client
+		 * keeps up with the replies.
+		 */
+		private void runCommands() throws IOException {
+			while (!closing && pendingEnd - pendingStart < MAX_PENDING_OUTPUT) {
+				int lineEnd = -1;
+
+				for (int i=Math.max(scanned, inputStart);i<inputEnd;i++) {
+					if (input[i] == '\n') {
+						lineEnd = i;
+						break;
+					}
+				}
+
+				if (lineEnd < 0) {
+					scanned = inputEnd;
+
+					//Like the command line, a last line without a line break is still run.
+					if (endOfInput) {
+						if (inputStart < inputEnd) {
+							runCommand(inputStart, inputEnd);
+							inputStart = inputEnd;
+						}
+						closing = true;
+					}
+					return;
+				}
+
+				runCommand(inputStart, lineEnd);
+				inputStart = lineEnd + 1;
+				scanned = inputStart;
+			}
+		}
+
+		private void runCommand(int start, int end) throws IOException {
+			if (end > start && input[end - 1] == '\r') {
+				end--;
+			}
+
+			output.connection = this;
+			producing = true;
+			boolean keepGoing;
+
+			try {
+				keepGoing = database.execute(input, start, end);
+				printer.flush();
+			} finally {
+				producing = false;
+			}
+
+			if (failure != null) {
+				throw failure;
+			}
+
+			if (keepGoing) {
+				send(NEXT_PROMPT, 0, NEXT_PROMPT.length);
+			} else {
+				closing = true;
+			}
+		}
+
+		private void send(byte[] bytes, int offset, int length) {
+			if (pendingEnd + length > pending.length) {
+				int used = pendingEnd - pendingStart;
+				System.arraycopy(pending, pendingStart, pending, 0, used);
+				pendingStart = 0;
+				pendingEnd = used;
+
+				if (used + length > pending.length) {
+					pending = Arrays.copyOf(pending, Math.max(pending.length * 2, used + length));
+				}
+			}
+			System.arraycopy(bytes, offset, pending, pendingEnd, length);
+			pendingEnd += length;
+
+			//A long reply is sent while the command is still producing it.
+			if (producing && failure == null && pendingEnd - pendingStart >= BUFFER_SIZE) {
+				try {
+					drain();
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+
+			if (failure != null) {
+				pendingStart = 0;
+				pendingEnd = 0;
+			}
+		}
+
+		private void updateInterest() {
+			int interest = 0;
+
+			if (!closing && !endOfInput && pendingEnd - pendingStart < MAX_PENDING_OUTPUT) {
+				interest |= SelectionKey.OP_READ;
+			}
+			if (pendingStart < pendingEnd) {
+				interest |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(interest);
+		}
+	}
+}
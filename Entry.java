@@ -1,26 +1,88 @@
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Set;
-import java.util.HashSet;
-import java.util.Collections;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * Entry deals with storing the key and value associated with entries in the
  * database. 
  * As well as storing the data the entry class should manage operations
  * associated with any Entry.
+ *
+ * An Entry is frozen once a snapshot refers to it. A frozen Entry is shared
+ * between the current state and snapshots, so it can no longer be changed;
+ * the current state must thaw a copy before writing to it.
+ *
+ * The sum, minimum and maximum of the values are cached. Adding values
+ * updates them directly, while removing the current minimum or maximum
+ * only marks them to be recomputed on the next MIN or MAX.
+ * The Entry also tracks whether its values are in ascending order, so that
+ * sorting an already sorted Entry does nothing.
+ *
+ * A compressed bitmap of the values is built on the first set operation
+ * that asks for it and dropped whenever values are added or removed.
+ *
+ * Each Entry carries the stamp of the command that added its key, so that
+ * entries kept in different keyspaces can be put back in recency order.
+ *
+ * A read command pins the Entries it reads. A pinned Entry is treated like
+ * a frozen one until it is unpinned, so readers on other threads never see
+ * it change. Lazily computed values are computed under the Entry's lock,
+ * because several readers can share a pinned Entry.
  */
 
 public class Entry {
+	private static final AtomicIntegerFieldUpdater<Entry> PINS =
+		AtomicIntegerFieldUpdater.newUpdater(Entry.class, "pins");
+
 	private String key;
-	private List<Integer> values;
+	private IntList values;
+	private boolean frozen;
+	private volatile int pins;
+	private long stamp;
+
+	private long sum;
+	private int min;
+	private int max;
+	private boolean minMaxValid;
+	private boolean sorted;
+	private Bitmap bitmap;
 
-	public Entry(String key, List<Integer> values) {
+	public Entry(String key, IntList values) {
 		this.key = key;
-		this.values = new ArrayList<Integer>();
-		
-		for (int i=0;i<values.size();i++) {
-			this.values.add(values.get(i));
+		this.values = new IntList(values);
+		this.sum = computeSum();
+		this.minMaxValid = false;
+		this.sorted = this.values.isSorted();
+	}
+
+	/**
+	 * Creates an Entry that takes over the list of values instead of copying it.
+	 * The caller must not use the list afterwards.
+	 *
+	 * @param  key    the key of the entry
+	 * @param  values the values of the entry
+	 * @return        the new entry
+	 */
+	public static Entry adopt(String key, IntList values) {
+		Entry entry = new Entry(key, new IntList());
+		entry.values = values;
+		entry.sum = entry.computeSum();
+		entry.sorted = values.isSorted();
+		return entry;
+	}
+
+	/**
+	 * Creates a copy of another Entry, including its cached values.
+	 */
+	private Entry(Entry other) {
+		synchronized (other) {
+			this.key = other.key;
+			this.values = new IntList(other.values);
+			this.sum = other.sum;
+			this.min = other.min;
+			this.max = other.max;
+			this.minMaxValid = other.minMaxValid;
+			this.sorted = other.sorted;
+			this.bitmap = other.bitmap;
+			this.stamp = other.stamp;
 		}
 	}
 	
@@ -32,11 +94,74 @@ public class Entry {
 	}
 	
 	/**
-	 * A getter method that sends back a copy of the values.
-	 * Ensures that the original list cannot be changed.
+	 * Finds the stamp of the command that added the key.
+	 */
+	public long getStamp() {
+		return stamp;
+	}
+
+	/**
+	 * Sets the stamp of the command that added the key.
+	 *
+	 * @param stamp the stamp, larger for more recently added keys
+	 */
+	public void setStamp(long stamp) {
+		this.stamp = stamp;
+	}
+
+	/**
+	 * Marks this Entry as shared with a snapshot so that it can no longer be changed.
+	 */
+	public void freeze() {
+		frozen = true;
+	}
+
+	/**
+	 * Marks this Entry as being read, so that writers change a copy instead.
+	 */
+	public void pin() {
+		PINS.incrementAndGet(this);
+	}
+
+	/**
+	 * Ends a read started by pin.
+	 */
+	public void unpin() {
+		PINS.decrementAndGet(this);
+	}
+
+	/**
+	 * Checks whether this Entry must be copied before it is changed, because
+	 * it is shared with a snapshot or being read.
+	 */
+	public boolean isShared() {
+		return frozen || pins > 0;
+	}
+
+	/**
+	 * Creates a copy of this Entry that can be changed.
+	 *
+	 * @return the copy of the entry
+	 */
+	public Entry thaw() {
+		return new Entry(this);
+	}
+
+	/**
+	 * Makes sure that a frozen Entry is not changed.
 	 */
-	public List<Integer> getValues() {
-		return new ArrayList<Integer>(values);
+	private void checkNotFrozen() {
+		if (frozen) {
+			throw new IllegalStateException("entry " + key + " is frozen");
+		}
+	}
+
+	/**
+	 * Gives read access to the values without copying them.
+	 * The list must not be changed by the caller.
+	 */
+	public IntList readValues() {
+		return values;
 	}
 
 
@@ -69,12 +194,13 @@ public class Entry {
 	 *
 	 * @param values the values to set
 	 */
-	public void set(List<Integer> values) {
-		this.values = new ArrayList<>();
-		
-		for (int i=0;i<values.size();i++) {
-			this.values.add(values.get(i));
-		}
+	public void set(IntList values) {
+		checkNotFrozen();
+		this.values = new IntList(values);
+		this.sum = computeSum();
+		this.minMaxValid = false;
+		this.sorted = this.values.isSorted();
+		this.bitmap = null;
 	}
 
 	/**
@@ -82,9 +208,16 @@ public class Entry {
 	 *
 	 * @param values the values to add
 	 */
-	public void push(List<Integer> values) {
+	public void push(IntList values) {
+		checkNotFrozen();
+		bitmap = null;
+
 		for (int i=0;i<values.size();i++) {
-			this.values.add(0, values.get(i));
+			if (sorted && this.values.size() > 0 && values.get(i) > this.values.get(0)) {
+				sorted = false;
+			}
+			this.values.addFirst(values.get(i));
+			added(values.get(i));
 		}
 	}
 
@@ -93,57 +226,95 @@ public class Entry {
 	 *
 	 * @param values the values to add
 	 */
-	public void append(List<Integer> values) {
+	public void append(IntList values) {
+		checkNotFrozen();
+		bitmap = null;
+
+		if (sorted && values.size() > 0) {
+			boolean afterLast = this.values.size() == 0 || this.values.get(this.values.size()-1) <= values.get(0);
+			sorted = afterLast && values.isSorted();
+		}
 		this.values.addAll(values);
+
+		for (int i=0;i<values.size();i++) {
+			added(values.get(i));
+		}
+	}
+
+	/**
+	 * Updates the cached sum, minimum and maximum after a value was added.
+	 */
+	private void added(int value) {
+		sum += value;
+
+		if (values.size() == 1) {
+			min = value;
+			max = value;
+			minMaxValid = true;
+		} else if (minMaxValid) {
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+	}
+
+	/**
+	 * Updates the cached sum, minimum and maximum after a value was removed.
+	 */
+	private void removed(int value) {
+		sum -= value;
+		bitmap = null;
+
+		if (value == min || value == max) {
+			minMaxValid = false;
+		}
+	}
+
+	/**
+	 * Checks whether the 1-based index refers to a value of this Entry.
+	 *
+	 * @param  index the index
+	 * @return       true if pick and pluck can be called with the index
+	 */
+	public boolean hasIndex(int index) {
+		return index >= 1 && index <= values.size();
 	}
 
 	/**
 	 * Finds the value at the given index.
+	 * The index must be checked with hasIndex first.
 	 *
 	 * @param  index the index
 	 * @return       the value found 
 	 */
-	public Integer pick(int index) {
-		int actualIndex = index -1;
-		
-		if (actualIndex > values.size()-1 || actualIndex < 0) {
-			return null;
-		}
-		
-		return values.get(actualIndex);
+	public int pick(int index) {
+		return values.get(index - 1);
 	}
 
 	/**
 	 * Finds and removes the value at the given index.
+	 * The index must be checked with hasIndex first.
 	 *
 	 * @param  index the index
 	 * @return       the value found
 	 */
-	public Integer pluck(int index) {
-		int actualIndex = index - 1;
-		
-		if (actualIndex > values.size()-1 || actualIndex < 0) {
-			return null;
-		}
-		
-		int pluckValue = values.get(actualIndex);
-		values.remove(actualIndex);
+	public int pluck(int index) {
+		checkNotFrozen();
+		int pluckValue = values.remove(index - 1);
+		removed(pluckValue);
 		return pluckValue;
 	}
 
 	/**
 	 * Finds and removes the first value.
+	 * The Entry must not be empty.
 	 *
 	 * @return the first value
 	 */
-	public Integer pop() {
-		if (values.size() == 0) {
-			return null;
-		}
-
-		int popValue = values.get(0);
-		values.remove(0);
-		return popValue;	
+	public int pop() {
+		checkNotFrozen();
+		int popValue = values.removeFirst();
+		removed(popValue);
+		return popValue;
 	}
 
 	/**
@@ -151,19 +322,13 @@ public class Entry {
 	 *
 	 * @return the minimum value
 	 */
-	public Integer min() {
+	public int min() {
 		
 		if (values.size() == 0) {
 			return 0;
 		} else {
-			int minimumNumber = values.get(0);
-			
-			for (int i=1;i<values.size();i++) {
-				if (values.get(i) < minimumNumber) {
-					minimumNumber = values.get(i);
-				}
-			}
-			return minimumNumber;
+			computeMinMax();
+			return min;
 		}
 	}
 
@@ -172,36 +337,61 @@ public class Entry {
 	 *
 	 * @return the maximum value
 	 */
-	public Integer max() {
+	public int max() {
 		
 		if (values.size() == 0) {
 			return 0;
 		} else {
-			int maximumNumber = values.get(0);
+			computeMinMax();
+			return max;
+		}
+	}
 
-			for (int i=0;i<values.size();i++) {
-				if (values.get(i) > maximumNumber) {
-					maximumNumber = values.get(i);
-				}
+	/**
+	 * Finds the sum of all values.
+	 *
+	 * @return the sum
+	 */
+	public long sum() {
+		return sum;
+	}
+
+	/**
+	 * Recomputes the cached minimum and maximum if a removal invalidated them.
+	 */
+	private synchronized void computeMinMax() {
+		if (minMaxValid) {
+			return;
+		}
+
+		int minimumNumber = values.get(0);
+		int maximumNumber = values.get(0);
+
+		for (int i=1;i<values.size();i++) {
+			int value = values.get(i);
+
+			if (value < minimumNumber) {
+				minimumNumber = value;
+			} else if (value > maximumNumber) {
+				maximumNumber = value;
 			}
-			return maximumNumber;
 		}
+
+		min = minimumNumber;
+		max = maximumNumber;
+		minMaxValid = true;
 	}
 
 	/**
 	 * Computes the sum of all values.
-	 *
-	 * @return the sum
 	 */
-	public Integer sum() {
-		/* Computes the sum of all values and returns the sum */
-		
-		int sum = 0;
-		
-		for (int s : values) {
-			sum += s;
+	private long computeSum() {
+		long total = 0;
+
+		for (int i=0;i<values.size();i++) {
+			total += values.get(i);
 		}
-		return sum;
+		return total;
 	}
 
 	/**
@@ -209,7 +399,7 @@ public class Entry {
 	 *
 	 * @return the number of values.
 	 */
-	public Integer len() {
+	public int len() {
 		return values.size();
 	}
 
@@ -217,209 +407,81 @@ public class Entry {
 	 * Reverses the order of values.
 	 */
 	public void rev() {
-		for (int i=0;i<values.size();i++) {
-			values.add(i, values.get(values.size()-1));
-			values.remove(values.size()-1);
-		}
+		checkNotFrozen();
+		values.reverse();
+		sorted = values.isSorted();
 	}
 	
 	/**
-	 * Removes adjacent duplicate values.
+	 * Removes adjacent duplicate values in a single pass.
+	 * Removing duplicates keeps the minimum, maximum and order of the values.
 	 */
 	public void uniq() {		
-		
-		for (int i=0;i<values.size()-1;i++) {
-			if (values.get(i) == values.get(i+1)) {
-				values.remove(i);
-				i--;
-			}
+		checkNotFrozen();
+		int oldSize = values.size();
+		values.removeAdjacentDuplicates();
+
+		if (values.size() != oldSize) {
+			sum = computeSum();
 		}
 	}
 
 	/**
-	 * Sorts the list in ascending order.
+	 * Sorts the list in ascending order, unless it is already sorted.
 	 */
 	public void sort() {
-		values.sort(null);
-		// TODO: implement this
-	}
+		checkNotFrozen();
 
-	/**
-	 * Computes the set difference of the entries.
-	 *
-	 * @param  entries the entries
-	 * @return         the resulting values
-	 */
-	public static List<Integer> diff(List<Entry> entries) {
-		ArrayList<Integer> diffList = new ArrayList<>();
-		ArrayList<Integer> duplicateList = new ArrayList<>();
-		
-		//For loop over all the entries.
-		for (int i=0;i<entries.size();i++) {
-			ArrayList<Integer> newValues = new ArrayList<>(entries.get(i).getValues());
-			ArrayList<Integer> newLoopValues = new ArrayList<>();
-			
-			//For each value in the entry, find if it unique.
-			for (Integer nextValue : newValues) {
-				if (diffList.contains(nextValue)) {
-					diffList.removeAll(Collections.singletonList(nextValue));
-					duplicateList.add(nextValue);
-				} else if (duplicateList.contains(nextValue)) {
-					continue;
-				} else {
-					newLoopValues.add(nextValue);
-				}
-			}
-			
-			//Create a new list to remove repeats in the list.
-			for (int k=0;k<newLoopValues.size();k++) {
-				if (diffList.contains(newLoopValues.get(k))) {
-					continue;
-				} else {
-					diffList.add(newLoopValues.get(k));
-				}
-			}
-
-			duplicateList.addAll(newValues);
+		if (!sorted) {
+			values.sort();
+			sorted = true;
 		}
-		Collections.sort(diffList);
-		return diffList;
 	}
-	
+
 	/**
-	 * Computes the set intersection of the entries.
-	 *
-	 * @param  entries the entries
-	 * @return         the resulting values
+	 * Checks whether the values are in ascending order.
 	 */
-	public static List<Integer> inter(List<Entry> entries) {
-		ArrayList<Integer> intersectionList = new ArrayList<>();
-		Set<Integer> intersectionSet = new HashSet<Integer>();
-		intersectionSet.addAll(entries.get(0).values);
-		
-		//Run a loop over all the entries to find the intersection of their value lists.
-		for (int i=1;i<entries.size();i++) {
-			Set<Integer> entrySet = new HashSet<>();
-			entrySet.addAll(entries.get(i).values);
-			intersectionSet.retainAll(entrySet);
-		}
-		
-		List<Integer> intersectList = new ArrayList<Integer>(intersectionSet);
-		Collections.sort(intersectList);
-		return intersectList;
+	public boolean isSorted() {
+		return sorted;
 	}
 
 	/**
-	 * Computes the set union of the entries.
+	 * Finds the values as a compressed bitmap, building it if needed.
 	 *
-	 * @param  entries the entries
-	 * @return         the resulting values
+	 * @return the bitmap of the values
 	 */
-	public static List<Integer> union(List<Entry> entries) {
-		List<Integer> unionList = new ArrayList<Integer>();
-	
-		//Run a for loop over the entries to find the list of union entries.
-		for (int i=0;i<entries.size();i++) {
-			for (int k=0;k<entries.get(i).getValues().size();k++) {
-				if (unionList.contains(entries.get(i).getValues().get(k))) {
-					continue;
-				} else {
-					unionList.add(entries.get(i).getValues().get(k));
-				}
-			}
+	public synchronized Bitmap bitmap() {
+		if (bitmap == null) {
+			bitmap = Bitmap.of(values, sorted);
 		}
-		
-		Collections.sort(unionList);
-		return unionList;
+		return bitmap;
 	}
 
 	/**
-	 * Computes the Cartesian product of the entries.
-	 *
-	 * @param  entries the entries
-	 * @return         the resulting values
+	 * Checks whether the bitmap of the values is already built.
 	 */
-	public static List<List<Integer>> cartprod(List<Entry> entries) {		
-
-		if (entries.size()<=1) {
-			List<List<Integer>> returnList = new ArrayList<List<Integer>>();
-			returnList.add(entries.get(0).values);
-			return returnList;	
-		} else {
-			//Multiply the first entry by the second entry in the list of entries then iterate until we have completed the list of lists.
-			List<List<Integer>> firstList = multiplyFirst(entries.get(0).values, entries.get(1).values);
-		
-			for (int i=1;i<entries.size();i++) {
-				if (i==entries.size()-1) {
-					break;
-				} else {
-					//Each fucntion call will assign firstList a list of lists of integers. This will multiply as the for loop is run.
-					firstList = multiplySecond(firstList, entries.get(i+1).values);
-				}
-			}
-			
-			return firstList;
-		}	
+	public boolean hasBitmap() {
+		return bitmap != null;
 	}
 
-	
-	/**
-	 * Second method for the Cartesian Product function that multiplies the first version.
-	 */
-	public static List<List<Integer>> multiplyFirst(List<Integer> firstList, List<Integer> secondList) {
-		List<List<Integer>> returnList = new ArrayList<List<Integer>>();
-
-		for (int i=0;i<firstList.size();i++) {
-			for (int k=0;k<secondList.size();k++) {
-				List<Integer> newList = new ArrayList<Integer>();
-				newList.add(firstList.get(i));
-				newList.add(secondList.get(k));
-				returnList.add(newList);
-			}
-		}
-		
-		return returnList;
-	}
-	
-	/**
-	 * Third method for the Cartesian Product function that multiplies all versions other than the first.
-	 */
-	public static List<List<Integer>> multiplySecond(List<List<Integer>> firstList, List<Integer> secondList) {		
-		List<List<Integer>> returnList = new ArrayList<List<Integer>>();
-		
-		for (int i=0;i<firstList.size();i++) {
-			
-			for (int k=0;k<secondList.size();k++) {
-				List<Integer> newElement = new ArrayList<Integer>(firstList.get(i));
-				newElement.add(secondList.get(k));
-				returnList.add(newElement);
-			}
-		}
-		
-		return returnList;
-	}
-	
-	
 	/**
 	 * Formats all the entries for display.
 	 *
 	 * @param  entries the entries to display
 	 * @return         the entries with their values
 	 */
-	public static String listAllEntries(List<Entry> entries) { 
+	public static String listAllEntries(Iterable<Entry> entries) { 
 		/* Formats all entries for display and returns the entries with their values. */
 		StringBuilder newString = new StringBuilder();
 	
-		for (int i=0;i<entries.size();i++) {
-			newString.append(entries.get(i).getKey());
-			newString.append(" ");
-			newString.append(entries.get(i).get());
-			
-			if (i == entries.size()-1) {
-				break;
+		for (Entry entry : entries) {
+			if (newString.length() > 0) {
+				newString.append("\n");
 			}
 			
-			newString.append("\n");
+			newString.append(entry.getKey());
+			newString.append(" ");
+			newString.append(entry.get());
 		}
 
 		return newString.toString();
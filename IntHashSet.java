@@ -0,0 +1,153 @@
+import java.util.Arrays;
+
+/**
+ * IntHashSet is a set of primitive int values.
+ * It uses open addressing with linear probing, so adding and looking up a
+ * value is O(1) on average without boxing it into an Integer.
+ */
+
+public class IntHashSet {
+	private static final int EMPTY = Integer.MIN_VALUE;
+
+	private int[] slots;
+	private int size;
+	private boolean hasEmptyValue;
+
+	public IntHashSet() {
+		this(16);
+	}
+
+	/**
+	 * Creates a set that can hold the given number of values without growing.
+	 *
+	 * @param expected the number of values expected
+	 */
+	public IntHashSet(int expected) {
+		int capacity = 16;
+
+		while (capacity < expected * 2 && capacity < (1 << 30)) {
+			capacity <<= 1;
+		}
+		slots = newSlots(capacity);
+	}
+
+	/**
+	 * Finds the number of values.
+	 *
+	 * @return the number of values
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Adds a value to the set.
+	 *
+	 * @param  value the value to add
+	 * @return       true if the value was not in the set before
+	 */
+	public boolean add(int value) {
+		if (value == EMPTY) {
+			if (hasEmptyValue) {
+				return false;
+			}
+			hasEmptyValue = true;
+			size++;
+			return true;
+		}
+
+		int mask = slots.length - 1;
+		int slot = hash(value) & mask;
+
+		while (slots[slot] != EMPTY) {
+			if (slots[slot] == value) {
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		slots[slot] = value;
+		size++;
+
+		if (size * 2 > slots.length) {
+			grow();
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether a value is in the set.
+	 *
+	 * @param  value the value to find
+	 * @return       true if the set contains the value
+	 */
+	public boolean contains(int value) {
+		if (value == EMPTY) {
+			return hasEmptyValue;
+		}
+
+		int mask = slots.length - 1;
+		int slot = hash(value) & mask;
+
+		while (slots[slot] != EMPTY) {
+			if (slots[slot] == value) {
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * Copies the values into a list, in no particular order.
+	 *
+	 * @return the list of values
+	 */
+	public IntList toList() {
+		IntList list = new IntList(size);
+
+		if (hasEmptyValue) {
+			list.add(EMPTY);
+		}
+
+		for (int i=0;i<slots.length;i++) {
+			if (slots[i] != EMPTY) {
+				list.add(slots[i]);
+			}
+		}
+		return list;
+	}
+
+	private void grow() {
+		int[] oldSlots = slots;
+		slots = newSlots(oldSlots.length * 2);
+		int mask = slots.length - 1;
+
+		for (int i=0;i<oldSlots.length;i++) {
+			int value = oldSlots[i];
+
+			if (value != EMPTY) {
+				int slot = hash(value) & mask;
+
+				while (slots[slot] != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+				slots[slot] = value;
+			}
+		}
+	}
+
+	private static int[] newSlots(int capacity) {
+		int[] newSlots = new int[capacity];
+		Arrays.fill(newSlots, EMPTY);
+		return newSlots;
+	}
+
+	/**
+	 * Spreads the bits of a value so that clustered values do not collide.
+	 */
+	private static int hash(int value) {
+		int h = value * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
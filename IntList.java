@@ -0,0 +1,328 @@
+import java.util.Arrays;
+
+/**
+ * IntList is a growable list of primitive int values.
+ * It is used to store entry values without boxing each value into an Integer.
+ * Indexes are 0-based, the 1-based indexing of commands is handled by Entry.
+ *
+ * The values are stored in a circular buffer, so adding or removing at
+ * either end is amortized O(1). Inserting or removing in the middle only
+ * shifts the values on the shorter side of the index.
+ */
+
+public class IntList {
+	private static final int DEFAULT_CAPACITY = 8;
+	private static final int RADIX_SORT_THRESHOLD = 1 << 16;
+
+	private int[] values;
+	private int head;
+	private int size;
+
+	public IntList() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public IntList(int capacity) {
+		values = new int[capacityFor(capacity)];
+		head = 0;
+		size = 0;
+	}
+
+	/**
+	 * Creates a copy of another list.
+	 *
+	 * @param other the list to copy
+	 */
+	public IntList(IntList other) {
+		values = new int[capacityFor(other.size)];
+		other.copyTo(values, 0);
+		head = 0;
+		size = other.size;
+	}
+
+	/**
+	 * Finds the number of values.
+	 *
+	 * @return the number of values
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Finds the value at the given index.
+	 *
+	 * @param  index the 0-based index
+	 * @return       the value found
+	 */
+	public int get(int index) {
+		checkIndex(index);
+		return values[(head + index) & (values.length - 1)];
+	}
+
+	/**
+	 * Adds a value to the end.
+	 *
+	 * @param value the value to add
+	 */
+	public void add(int value) {
+		ensureCapacity(size + 1);
+		values[(head + size) & (values.length - 1)] = value;
+		size++;
+	}
+
+	/**
+	 * Adds a value to the start.
+	 *
+	 * @param value the value to add
+	 */
+	public void addFirst(int value) {
+		ensureCapacity(size + 1);
+		head = (head - 1) & (values.length - 1);
+		values[head] = value;
+		size++;
+	}
+
+	/**
+	 * Adds all values of another list to the end.
+	 *
+	 * @param other the values to add
+	 */
+	public void addAll(IntList other) {
+		int count = other.size;
+		ensureCapacity(size + count);
+
+		for (int i=0;i<count;i++) {
+			values[(head + size + i) & (values.length - 1)] = other.values[(other.head + i) & (other.values.length - 1)];
+		}
+		size += count;
+	}
+
+	/**
+	 * Adds part of an array of values to the end.
+	 *
+	 * @param array the values to add
+	 * @param from  the index of the first value to add
+	 * @param count the number of values to add
+	 */
+	public void addAll(int[] array, int from, int count) {
+		ensureCapacity(size + count);
+		int tail = (head + size) & (values.length - 1);
+		int firstPart = Math.min(count, values.length - tail);
+		System.arraycopy(array, from, values, tail, firstPart);
+		System.arraycopy(array, from + firstPart, values, 0, count - firstPart);
+		size += count;
+	}
+
+	/**
+	 * Removes the value at the given index, shifting the values on the
+	 * shorter side of the index.
+	 *
+	 * @param  index the 0-based index
+	 * @return       the removed value
+	 */
+	public int remove(int index) {
+		checkIndex(index);
+		int mask = values.length - 1;
+		int removed = values[(head + index) & mask];
+
+		if (index < size - 1 - index) {
+			//Move the values before the index one place towards the back.
+			for (int i=index;i>0;i--) {
+				values[(head + i) & mask] = values[(head + i - 1) & mask];
+			}
+			head = (head + 1) & mask;
+		} else {
+			//Move the values after the index one place towards the front.
+			for (int i=index;i<size-1;i++) {
+				values[(head + i) & mask] = values[(head + i + 1) & mask];
+			}
+		}
+		size--;
+		return removed;
+	}
+
+	/**
+	 * Removes the first value.
+	 *
+	 * @return the removed value
+	 */
+	public int removeFirst() {
+		checkIndex(0);
+		int removed = values[head];
+		head = (head + 1) & (values.length - 1);
+		size--;
+		return removed;
+	}
+
+	/**
+	 * Removes all values.
+	 */
+	public void clear() {
+		head = 0;
+		size = 0;
+	}
+
+	/**
+	 * Reverses the order of values in place.
+	 */
+	public void reverse() {
+		int mask = values.length - 1;
+
+		for (int i=0, k=size-1;i<k;i++, k--) {
+			int temp = values[(head + i) & mask];
+			values[(head + i) & mask] = values[(head + k) & mask];
+			values[(head + k) & mask] = temp;
+		}
+	}
+
+	/**
+	 * Sorts the values in ascending order.
+	 * Large lists use a radix sort, smaller ones the dual-pivot quicksort of Arrays.
+	 */
+	public void sort() {
+		compact();
+
+		if (size >= RADIX_SORT_THRESHOLD) {
+			radixSort(values, size);
+		} else {
+			Arrays.sort(values, 0, size);
+		}
+	}
+
+	/**
+	 * Checks whether the values are in ascending order.
+	 *
+	 * @return true if no value is smaller than the one before it
+	 */
+	public boolean isSorted() {
+		int mask = values.length - 1;
+
+		for (int i=1;i<size;i++) {
+			if (values[(head + i - 1) & mask] > values[(head + i) & mask]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes values that are equal to the value before them, in a single pass.
+	 */
+	public void removeAdjacentDuplicates() {
+		if (size < 2) {
+			return;
+		}
+		compact();
+		int kept = 1;
+
+		for (int i=1;i<size;i++) {
+			if (values[i] != values[kept - 1]) {
+				values[kept++] = values[i];
+			}
+		}
+		size = kept;
+	}
+
+	/**
+	 * Copies the values into a new array.
+	 *
+	 * @return the array of values
+	 */
+	public int[] toArray() {
+		int[] array = new int[size];
+		copyTo(array, 0);
+		return array;
+	}
+
+	/**
+	 * Copies the values in order into an array.
+	 */
+	private void copyTo(int[] destination, int offset) {
+		int firstPart = Math.min(size, values.length - head);
+		System.arraycopy(values, head, destination, offset, firstPart);
+		System.arraycopy(values, 0, destination, offset + firstPart, size - firstPart);
+	}
+
+	/**
+	 * Moves the values so that they start at the beginning of the array.
+	 */
+	private void compact() {
+		if (head + size > values.length) {
+			int[] newValues = new int[values.length];
+			copyTo(newValues, 0);
+			values = newValues;
+		} else if (head != 0) {
+			System.arraycopy(values, head, values, 0, size);
+		}
+		head = 0;
+	}
+
+	/**
+	 * Sorts the first n values of an array with a least significant digit
+	 * radix sort, one byte per pass. Passes where every value has the same
+	 * digit are skipped.
+	 */
+	private static void radixSort(int[] array, int n) {
+		int[] source = array;
+		int[] destination = new int[n];
+
+		for (int shift=0;shift<32;shift+=8) {
+			//Flipping the sign bit in the top byte puts negative values first.
+			int flip = (shift == 24) ? 0x80 : 0;
+			int[] counts = new int[257];
+
+			for (int i=0;i<n;i++) {
+				counts[(((source[i] >>> shift) & 0xFF) ^ flip) + 1]++;
+			}
+
+			if (counts[(((source[0] >>> shift) & 0xFF) ^ flip) + 1] == n) {
+				continue;
+			}
+
+			for (int i=0;i<256;i++) {
+				counts[i + 1] += counts[i];
+			}
+
+			for (int i=0;i<n;i++) {
+				destination[counts[((source[i] >>> shift) & 0xFF) ^ flip]++] = source[i];
+			}
+
+			int[] temp = source;
+			source = destination;
+			destination = temp;
+		}
+
+		if (source != array) {
+			System.arraycopy(source, 0, array, 0, n);
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > values.length) {
+			int[] newValues = new int[capacityFor(capacity)];
+			copyTo(newValues, 0);
+			values = newValues;
+			head = 0;
+		}
+	}
+
+	/**
+	 * Finds the power of two capacity that holds the given number of values.
+	 */
+	private static int capacityFor(int capacity) {
+		if (capacity <= DEFAULT_CAPACITY) {
+			return DEFAULT_CAPACITY;
+		}
+		if (capacity > (1 << 30)) {
+			throw new OutOfMemoryError("IntList capacity exceeded");
+		}
+		return Integer.highestOneBit(capacity - 1) << 1;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Collections;
+
+/**
+ * KeyIndex is an inverted index from each key to the snapshot keyspaces that
+ * store something about it: an entry, a replaced entry or a removed key.
+ * It lets PURGE visit only the snapshots that contain a key instead of
+ * scanning all of them.
+ */
+
+public class KeyIndex {
+	private Map<String, Set<Keyspace>> keyspaces;
+
+	public KeyIndex() {
+		keyspaces = new HashMap<String, Set<Keyspace>>();
+	}
+
+	/**
+	 * Records that a keyspace stores something about a key.
+	 *
+	 * @param key      the key
+	 * @param keyspace the keyspace
+	 */
+	public void add(String key, Keyspace keyspace) {
+		Set<Keyspace> found = keyspaces.get(key);
+
+		if (found == null) {
+			found = new HashSet<Keyspace>();
+			keyspaces.put(key, found);
+		}
+		found.add(keyspace);
+	}
+
+	/**
+	 * Forgets that a keyspace stores something about a key.
+	 *
+	 * @param key      the key
+	 * @param keyspace the keyspace
+	 */
+	public void remove(String key, Keyspace keyspace) {
+		Set<Keyspace> found = keyspaces.get(key);
+
+		if (found != null) {
+			found.remove(keyspace);
+
+			if (found.isEmpty()) {
+				keyspaces.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Finds and forgets every keyspace that stores something about a key.
+	 *
+	 * @param  key the key
+	 * @return     the keyspaces that stored the key
+	 */
+	public Set<Keyspace> removeKey(String key) {
+		Set<Keyspace> found = keyspaces.remove(key);
+
+		if (found == null) {
+			return Collections.emptySet();
+		}
+		return found;
+	}
+}
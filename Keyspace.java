@@ -0,0 +1,551 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Keyspace stores the entries of a state, indexed by key.
+ * Entries are kept in a hash index for constant time lookups while a linked
+ * list keeps them ordered from most recently added to least recently added.
+ *
+ * A keyspace can also be a layer on top of a base keyspace that is shared
+ * with a snapshot. Reads fall through to the base, while keys added, replaced
+ * or removed in the layer are recorded in the layer only, so the base is
+ * never copied or changed.
+ *
+ * Snapshots are stored as a chain of such layers, each holding only the keys
+ * that changed since the snapshot below it. A layer that is no longer kept
+ * by a snapshot is merged into the single layer that still depends on it,
+ * or let go when nothing depends on it.
+ *
+ * Keyspaces kept by snapshots record the keys they store in a KeyIndex that
+ * is shared by every keyspace of the database, so a key can be purged from
+ * exactly the keyspaces that store it.
+ */
+
+public class Keyspace implements Iterable<Entry> {
+
+	/**
+	 * Node of the recency list, holding one Entry.
+	 */
+	private static class Node {
+		private Entry entry;
+		private Node prev;
+		private Node next;
+
+		private Node(Entry entry) {
+			this.entry = entry;
+		}
+	}
+
+	private Map<String, Node> index;
+	private Node head;
+	private Node tail;
+
+	//Only used by layers: the shared keyspace below, the base keys that are
+	//no longer visible here, and the base keys replaced in their position.
+	private Keyspace base;
+	private Set<String> hidden;
+	private Map<String, Entry> replaced;
+
+	//The layers built directly on top of this keyspace, and whether a snapshot keeps it.
+	private Set<Keyspace> layers;
+	private boolean retained;
+
+	//The index of keys stored by snapshot keyspaces, and whether this keyspace is in it.
+	private KeyIndex keyIndex;
+	private boolean indexed;
+
+	public Keyspace() {
+		index = new HashMap<String, Node>();
+		layers = new HashSet<Keyspace>();
+	}
+
+	/**
+	 * Creates an empty keyspace that records its keys in the given index
+	 * once a snapshot keeps it.
+	 *
+	 * @param keyIndex the index shared by the keyspaces of the database
+	 */
+	public Keyspace(KeyIndex keyIndex) {
+		this();
+		this.keyIndex = keyIndex;
+	}
+
+	/**
+	 * Creates an empty layer on top of a keyspace. The base must not be
+	 * changed while the layer is in use, except by purge.
+	 *
+	 * @param base the keyspace to read through to
+	 */
+	public Keyspace(Keyspace base) {
+		this();
+		this.base = base;
+		this.hidden = new HashSet<String>();
+		this.replaced = new HashMap<String, Entry>();
+		this.keyIndex = base.keyIndex;
+		base.layers.add(this);
+	}
+
+	/**
+	 * Finds the number of layers below this keyspace.
+	 *
+	 * @return 0 for a keyspace without a base
+	 */
+	public int depth() {
+		int depth = 0;
+
+		for (Keyspace layer=base;layer!=null;layer=layer.base) {
+			depth++;
+		}
+		return depth;
+	}
+
+	/**
+	 * Finds the Entry object of a key.
+	 *
+	 * @param  key the key of the entry
+	 * @return     the entry, or null if there is no such key
+	 */
+	public Entry get(String key) {
+		Node node = index.get(key);
+
+		if (node != null) {
+			return node.entry;
+		}
+		return getFromBase(key);
+	}
+
+	/**
+	 * Finds the Entry object of a key that is still visible from the base.
+	 */
+	private Entry getFromBase(String key) {
+		if (base == null || hidden.contains(key)) {
+			return null;
+		}
+
+		Entry replacedEntry = replaced.get(key);
+
+		if (replacedEntry != null) {
+			return replacedEntry;
+		}
+		return base.get(key);
+	}
+
+	/**
+	 * Checks whether the keyspace contains a given key.
+	 */
+	public boolean contains(String key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Finds the number of entries.
+	 *
+	 * @return the number of entries
+	 */
+	public int size() {
+		if (base == null) {
+			return index.size();
+		}
+		return index.size() + base.size() - hidden.size();
+	}
+
+	/**
+	 * Adds an entry as the most recent one. Replaces any entry with the same key.
+	 *
+	 * @param entry the entry to add
+	 */
+	public void addFirst(Entry entry) {
+		remove(entry.getKey());
+		Node node = new Node(entry);
+		index.put(entry.getKey(), node);
+
+		node.next = head;
+		if (head != null) {
+			head.prev = node;
+		} else {
+			tail = node;
+		}
+		head = node;
+	}
+
+	/**
+	 * Adds an entry as the least recent one. Replaces any entry with the same key.
+	 * Only keyspaces without a base support this.
+	 *
+	 * @param entry the entry to add
+	 */
+	public void addLast(Entry entry) {
+		if (base != null) {
+			throw new UnsupportedOperationException("cannot add behind the base of a layer");
+		}
+
+		remove(entry.getKey());
+		linkLast(entry);
+	}
+
+	/**
+	 * Adds a new node for an entry at the end of this keyspace's own list.
+	 */
+	private void linkLast(Entry entry) {
+		Node node = new Node(entry);
+		index.put(entry.getKey(), node);
+
+		node.prev = tail;
+		if (tail != null) {
+			tail.next = node;
+		} else {
+			head = node;
+		}
+		tail = node;
+	}
+
+	/**
+	 * Replaces the entry with the same key, keeping its position.
+	 *
+	 * @param  entry the new entry
+	 * @return       the replaced entry, or null if there is no such key
+	 */
+	public Entry replace(Entry entry) {
+		Node node = index.get(entry.getKey());
+
+		if (node != null) {
+			Entry oldEntry = node.entry;
+			node.entry = entry;
+			return oldEntry;
+		}
+
+		Entry oldEntry = getFromBase(entry.getKey());
+
+		if (oldEntry != null) {
+			replaced.put(entry.getKey(), entry);
+		}
+		return oldEntry;
+	}
+
+	/**
+	 * Finds and removes the entry of a key.
+	 *
+	 * @param  key the key to remove
+	 * @return     the removed entry, or null if there is no such key
+	 */
+	public Entry remove(String key) {
+		Node node = index.remove(key);
+
+		if (node == null) {
+			Entry oldEntry = getFromBase(key);
+
+			if (oldEntry != null) {
+				hidden.add(key);
+				replaced.remove(key);
+			}
+			return oldEntry;
+		}
+
+		if (node.prev != null) {
+			node.prev.next = node.next;
+		} else {
+			head = node.next;
+		}
+
+		if (node.next != null) {
+			node.next.prev = node.prev;
+		} else {
+			tail = node.prev;
+		}
+
+		return node.entry;
+	}
+
+	/**
+	 * Removes a key from this keyspace and from every snapshot keyspace that
+	 * stores it. Used when a key is purged from the whole database, so every
+	 * state sharing these keyspaces loses the key.
+	 *
+	 * @param key the key to remove
+	 */
+	public void purge(String key) {
+		strip(key);
+
+		if (keyIndex != null) {
+			for (Keyspace keyspace : keyIndex.removeKey(key)) {
+				keyspace.strip(key);
+			}
+		}
+	}
+
+	/**
+	 * Forgets a key in this keyspace only, without hiding it in the base.
+	 */
+	private void strip(String key) {
+		Node node = index.get(key);
+
+		if (node != null) {
+			remove(key);
+		}
+
+		if (base != null) {
+			hidden.remove(key);
+			replaced.remove(key);
+		}
+	}
+
+	/**
+	 * Freezes the entries stored in this keyspace. Entries that are only
+	 * read through from the base are already frozen.
+	 */
+	public void freeze() {
+		for (Node node=head;node!=null;node=node.next) {
+			node.entry.freeze();
+		}
+
+		if (replaced != null) {
+			for (Entry entry : replaced.values()) {
+				entry.freeze();
+			}
+		}
+	}
+
+	/**
+	 * Marks this keyspace as kept by a snapshot.
+	 */
+	public void retain() {
+		retained = true;
+		indexKeys();
+	}
+
+	/**
+	 * Records every key stored in this keyspace in the key index.
+	 */
+	private void indexKeys() {
+		if (keyIndex == null || indexed) {
+			return;
+		}
+
+		for (String key : index.keySet()) {
+			keyIndex.add(key, this);
+		}
+
+		if (base != null) {
+			for (String key : hidden) {
+				keyIndex.add(key, this);
+			}
+
+			for (String key : replaced.keySet()) {
+				keyIndex.add(key, this);
+			}
+		}
+		indexed = true;
+	}
+
+	/**
+	 * Removes every key stored in this keyspace from the key index.
+	 */
+	private void unindexKeys() {
+		if (!indexed) {
+			return;
+		}
+
+		for (String key : index.keySet()) {
+			keyIndex.remove(key, this);
+		}
+
+		if (base != null) {
+			for (String key : hidden) {
+				keyIndex.remove(key, this);
+			}
+
+			for (String key : replaced.keySet()) {
+				keyIndex.remove(key, this);
+			}
+		}
+		indexed = false;
+	}
+
+	/**
+	 * Marks this keyspace as no longer used by a snapshot or by the current
+	 * state. Its changes are merged into the layer on top of it if there is
+	 * exactly one, and it is detached from its base if there is none.
+	 */
+	public void discard() {
+		retained = false;
+		compact();
+	}
+
+	/**
+	 * Merges or detaches this keyspace when it is neither kept nor shared.
+	 */
+	private void compact() {
+		if (retained) {
+			return;
+		}
+
+		if (layers.isEmpty()) {
+			unindexKeys();
+
+			if (base != null) {
+				Keyspace oldBase = base;
+				oldBase.layers.remove(this);
+				oldBase.compact();
+			}
+		} else if (layers.size() == 1) {
+			layers.iterator().next().absorbBase();
+		}
+	}
+
+	/**
+	 * Merges the changes of the base into this layer so that it reads
+	 * through to the base of its base instead. The visible entries and their
+	 * order do not change.
+	 */
+	private void absorbBase() {
+		Keyspace oldBase = base;
+		boolean wasIndexed = indexed;
+		unindexKeys();
+		oldBase.unindexKeys();
+
+		if (oldBase.base == null) {
+			//The base is a full keyspace, so this layer becomes one as well.
+			List<Entry> visible = toList();
+			index.clear();
+			head = null;
+			tail = null;
+			base = null;
+			hidden = null;
+			replaced = null;
+
+			for (int i=0;i<visible.size();i++) {
+				linkLast(visible.get(i));
+			}
+		} else {
+			//Keys added in the base come after the keys added in this layer.
+			for (Node node=oldBase.head;node!=null;node=node.next) {
+				String key = node.entry.getKey();
+
+				if (hidden.contains(key)) {
+					continue;
+				}
+
+				Entry replacedEntry = replaced.get(key);
+				linkLast((replacedEntry != null) ? replacedEntry : node.entry);
+			}
+
+			//Keys hidden or replaced below the base's own keys now apply to the new base.
+			Set<String> newHidden = new HashSet<String>(oldBase.hidden);
+			Map<String, Entry> newReplaced = new HashMap<String, Entry>();
+
+			for (String key : hidden) {
+				if (!oldBase.index.containsKey(key)) {
+					newHidden.add(key);
+				}
+			}
+
+			for (Map.Entry<String, Entry> change : oldBase.replaced.entrySet()) {
+				if (!hidden.contains(change.getKey())) {
+					newReplaced.put(change.getKey(), change.getValue());
+				}
+			}
+
+			for (Map.Entry<String, Entry> change : replaced.entrySet()) {
+				if (!oldBase.index.containsKey(change.getKey())) {
+					newReplaced.put(change.getKey(), change.getValue());
+				}
+			}
+
+			hidden = newHidden;
+			replaced = newReplaced;
+			base = oldBase.base;
+			base.layers.remove(oldBase);
+			base.layers.add(this);
+		}
+
+		oldBase.layers.remove(this);
+		oldBase.base = null;
+
+		if (wasIndexed) {
+			indexKeys();
+		}
+	}
+
+	/**
+	 * Creates a keyspace holding the same Entry objects in the same order.
+	 * The entries themselves are not copied, and the copy has no base.
+	 *
+	 * @return the copy of the keyspace
+	 */
+	public Keyspace copy() {
+		Keyspace copy = new Keyspace(keyIndex);
+
+		for (Entry entry : this) {
+			copy.addLast(entry);
+		}
+		return copy;
+	}
+
+	/**
+	 * Copies the entries into a list, most recent first.
+	 *
+	 * @return the list of entries
+	 */
+	public List<Entry> toList() {
+		List<Entry> list = new ArrayList<Entry>(size());
+
+		for (Entry entry : this) {
+			list.add(entry);
+		}
+		return list;
+	}
+
+	/**
+	 * Iterates over the entries from most recent to least recent.
+	 * Entries added in a layer come before the entries of its base.
+	 */
+	public Iterator<Entry> iterator() {
+		return new Iterator<Entry>() {
+			private Node next = head;
+			private Iterator<Entry> baseEntries = (base == null) ? null : base.iterator();
+			private Entry nextBaseEntry = findNextBaseEntry();
+
+			public boolean hasNext() {
+				return next != null || nextBaseEntry != null;
+			}
+
+			public Entry next() {
+				if (next != null) {
+					Entry entry = next.entry;
+					next = next.next;
+					return entry;
+				}
+
+				if (nextBaseEntry == null) {
+					throw new NoSuchElementException();
+				}
+				Entry entry = nextBaseEntry;
+				nextBaseEntry = findNextBaseEntry();
+				return entry;
+			}
+
+			/**
+			 * Skips the base entries hidden by the layer and swaps in replaced ones.
+			 */
+			private Entry findNextBaseEntry() {
+				while (baseEntries != null && baseEntries.hasNext()) {
+					Entry entry = baseEntries.next();
+
+					if (hidden.contains(entry.getKey())) {
+						continue;
+					}
+
+					Entry replacedEntry = replaced.get(entry.getKey());
+					return (replacedEntry != null) ? replacedEntry : entry;
+				}
+				return null;
+			}
+		};
+	}
+}
@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * LineReader reads lines of bytes from a stream through one large buffer.
+ *
+ * Each line is handed out as a range of the buffer instead of a new String,
+ * and stays valid until the next line is read. A line ends at "\n" or
+ * "\r\n", and a last line without a line break is still read.
+ */
+
+public class LineReader {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final InputStream in;
+	private byte[] buffer;
+	private int start;
+	private int end;
+	private int lineStart;
+	private int lineEnd;
+	private boolean endOfInput;
+
+	/**
+	 * Creates a reader of the given stream.
+	 *
+	 * @param in the stream to read
+	 */
+	public LineReader(InputStream in) {
+		this.in = in;
+		this.buffer = new byte[BUFFER_SIZE];
+	}
+
+	/**
+	 * Reads the next line.
+	 *
+	 * @return             false if there are no more lines
+	 * @throws IOException if the stream cannot be read
+	 */
+	public boolean next() throws IOException {
+		int scanned = start;
+
+		while (true) {
+			for (int i=scanned;i<end;i++) {
+				if (buffer[i] == '\n') {
+					setLine(start, i);
+					start = i + 1;
+					return true;
+				}
+			}
+			scanned = end;
+
+			if (endOfInput) {
+				if (start == end) {
+					return false;
+				}
+				setLine(start, end);
+				start = end;
+				return true;
+			}
+
+			//Make room for more input, keeping the partial line.
+			if (end == buffer.length) {
+				int used = end - start;
+
+				if (start == 0) {
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				} else {
+					System.arraycopy(buffer, start, buffer, 0, used);
+				}
+				scanned -= start;
+				start = 0;
+				end = used;
+			}
+
+			int read = in.read(buffer, end, buffer.length - end);
+
+			if (read < 0) {
+				endOfInput = true;
+			} else {
+				end += read;
+			}
+		}
+	}
+
+	/**
+	 * Finds the buffer holding the current line.
+	 *
+	 * @return the buffer
+	 */
+	public byte[] buffer() {
+		return buffer;
+	}
+
+	/**
+	 * Finds where the current line starts in the buffer.
+	 *
+	 * @return the index of the first byte of the line
+	 */
+	public int lineStart() {
+		return lineStart;
+	}
+
+	/**
+	 * Finds where the current line ends in the buffer, not counting the line break.
+	 *
+	 * @return the index after the last byte of the line
+	 */
+	public int lineEnd() {
+		return lineEnd;
+	}
+
+	private void setLine(int from, int to) {
+		if (to > from && buffer[to - 1] == '\r') {
+			to--;
+		}
+		lineStart = from;
+		lineEnd = to;
+	}
+}
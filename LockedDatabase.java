@@ -0,0 +1,160 @@
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * LockedDatabase lets many threads run commands on one CrunchDB at once.
+ *
+ * Keys are hashed onto a fixed set of lock stripes. A command that changes
+ * one key holds only that key's stripe, so commands on keys in different
+ * stripes run in parallel. Commands that need several stripes, such as
+ * DIFF, INTER, UNION and CARTPROD while they pin their keys, always take
+ * them in increasing stripe order so that they can never wait on each other.
+ *
+ * Every keyed command also holds the read side of a global barrier.
+ * Commands that work on the whole database, such as SNAPSHOT, ROLLBACK,
+ * CHECKOUT, DROP, PURGE, LIST SNAPSHOTS, ARCHIVE and RESTORE, take its
+ * write side and run alone.
+ *
+ * Read commands hold no locks while they run. They pin a ReadVersion of
+ * the entries they read, and hold the barrier and the stripes of their keys
+ * only while pinning; LIST KEYS and LIST ENTRIES hold every stripe for that
+ * moment. Writers to those keys then change copies, so they do not wait
+ * for a long LIST, UNION or CARTPROD to finish.
+ */
+
+public class LockedDatabase implements SharedDatabase, ReadVersion.Guard {
+	private static final int STRIPES = 256;
+
+	private final CrunchDB database;
+	private final ReentrantReadWriteLock barrier;
+	private final Lock[] stripes;
+	private final ThreadLocal<Tokenizer> tokenizer = ThreadLocal.withInitial(Tokenizer::new);
+
+	public LockedDatabase(CrunchDB database) {
+		this.database = database;
+		this.barrier = new ReentrantReadWriteLock();
+		this.stripes = new Lock[STRIPES];
+
+		for (int i=0;i<STRIPES;i++) {
+			stripes[i] = new ReentrantLock();
+		}
+		database.setReadGuard(this);
+	}
+
+	/**
+	 * Runs one command line while holding the locks it needs.
+	 *
+	 * @param  line the command line
+	 * @param  out  the stream the output of the command is written to
+	 * @return      false if the command was BYE
+	 */
+	public boolean execute(String line, PrintStream out) {
+		Tokenizer tokens = tokenizer.get();
+		tokens.tokenize(line);
+		Command command = Command.find(tokens, 0);
+		Command.Locking locking = (command == null) ? Command.Locking.GLOBAL : command.locking(tokens);
+		int[] held = null;
+
+		if (locking == Command.Locking.READ) {
+			//The locks are taken by pin.
+			database.setOutput(out);
+			return database.execute(line);
+		}
+
+		if (locking == Command.Locking.KEY) {
+			held = (tokens.count() >= 2) ? new int[] {stripeOf(tokens.token(1))} : new int[0];
+		}
+
+		Lock global = (held == null) ? barrier.writeLock() : barrier.readLock();
+		global.lock();
+
+		try {
+			if (held != null) {
+				for (int i=0;i<held.length;i++) {
+					stripes[held[i]].lock();
+				}
+			}
+
+			try {
+				database.setOutput(out);
+				return database.execute(line);
+			} finally {
+				if (held != null) {
+					for (int i=held.length-1;i>=0;i--) {
+						stripes[held[i]].unlock();
+					}
+				}
+			}
+		} finally {
+			global.unlock();
+		}
+	}
+
+	/**
+	 * Holds the barrier and the stripes of the keys, or every stripe, while
+	 * a read command pins its entries.
+	 */
+	public ReadVersion pin(List<String> keys, Supplier<ReadVersion> pin) {
+		int[] held;
+
+		if (keys == null) {
+			held = new int[STRIPES];
+
+			for (int i=0;i<STRIPES;i++) {
+				held[i] = i;
+			}
+		} else {
+			held = stripesOf(keys);
+		}
+
+		Lock global = barrier.readLock();
+		global.lock();
+
+		try {
+			for (int i=0;i<held.length;i++) {
+				stripes[held[i]].lock();
+			}
+
+			try {
+				return pin.get();
+			} finally {
+				for (int i=held.length-1;i>=0;i--) {
+					stripes[held[i]].unlock();
+				}
+			}
+		} finally {
+			global.unlock();
+		}
+	}
+
+	/**
+	 * Finds the distinct stripes of the keys, in increasing order.
+	 */
+	private static int[] stripesOf(List<String> keys) {
+		int[] found = new int[keys.size()];
+
+		for (int i=0;i<found.length;i++) {
+			found[i] = stripeOf(keys.get(i));
+		}
+
+		Arrays.sort(found);
+		int distinct = 0;
+
+		for (int i=0;i<found.length;i++) {
+			if (distinct == 0 || found[distinct - 1] != found[i]) {
+				found[distinct++] = found[i];
+			}
+		}
+		return Arrays.copyOf(found, distinct);
+	}
+
+	private static int stripeOf(String key) {
+		int hash = key.hashCode();
+		return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+	}
+}
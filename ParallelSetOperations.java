@@ -0,0 +1,212 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * ParallelSetOperations runs a set operation on the common ForkJoinPool by
+ * splitting the values into partitions of about the same size.
+ *
+ * First the values of every entry are scattered into the partitions, one
+ * task per block of values. Then each partition runs the sequential
+ * operation on its own share of every entry. A value always falls in the
+ * same partition, so the partial results are disjoint, and since the
+ * partitions are ordered by value the sorted partial results only need to
+ * be joined end to end.
+ *
+ * The bounds of the partitions are quantiles of a sample of the values, so
+ * a few outliers far from the rest do not leave most values in one partition.
+ */
+
+public class ParallelSetOperations {
+	private static final int PARALLEL_MIN_VALUES = 1 << 20;
+	private static final int BLOCK_SIZE = 1 << 16;
+	private static final int PARTITIONS_PER_THREAD = 4;
+	private static final int SAMPLES_PER_PARTITION = 64;
+
+	private ParallelSetOperations() {
+	}
+
+	/**
+	 * Checks whether the entries are large enough for splitting the work
+	 * across threads to pay off.
+	 *
+	 * @param  entries the entries
+	 * @return         true if the operation should run in parallel
+	 */
+	public static boolean isWorthwhile(List<Entry> entries) {
+		if (ForkJoinPool.getCommonPoolParallelism() < 2) {
+			return false;
+		}
+
+		long total = 0;
+		for (int i=0;i<entries.size();i++) {
+			total += entries.get(i).len();
+		}
+		return total >= PARALLEL_MIN_VALUES;
+	}
+
+	/**
+	 * Runs a set operation in parallel. The operation must return distinct
+	 * values in ascending order and give the same result for a partition
+	 * of the values as the full operation restricted to that partition.
+	 *
+	 * @param  entries   the entries
+	 * @param  operation the sequential operation over lists of values
+	 * @return           the resulting values
+	 */
+	public static IntList apply(List<Entry> entries, Function<List<IntList>, IntList> operation) {
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		Bounds bounds = Bounds.of(entries, pool.getParallelism() * PARTITIONS_PER_THREAD);
+		int partitions = bounds.partitions();
+
+		//Scatter each block of values into per-partition lists.
+		List<Callable<IntList[]>> scatterTasks = new ArrayList<Callable<IntList[]>>();
+		List<Integer> taskEntries = new ArrayList<Integer>();
+
+		for (int i=0;i<entries.size();i++) {
+			IntList values = entries.get(i).readValues();
+
+			for (int from=0;from<values.size();from+=BLOCK_SIZE) {
+				int start = from;
+				int end = Math.min(values.size(), from + BLOCK_SIZE);
+				scatterTasks.add(() -> scatter(values, start, end, bounds, partitions));
+				taskEntries.add(i);
+			}
+		}
+		List<IntList[]> scattered = join(pool.invokeAll(scatterTasks));
+
+		//Run the operation on each partition.
+		List<Callable<IntList>> partitionTasks = new ArrayList<Callable<IntList>>();
+
+		for (int p=0;p<partitions;p++) {
+			int partition = p;
+			partitionTasks.add(() -> operation.apply(gather(entries.size(), scattered, taskEntries, partition)));
+		}
+		List<IntList> results = join(pool.invokeAll(partitionTasks));
+
+		IntList result = new IntList();
+		for (int p=0;p<partitions;p++) {
+			result.addAll(results.get(p));
+		}
+		return result;
+	}
+
+	private static IntList[] scatter(IntList values, int start, int end, Bounds bounds, int partitions) {
+		IntList[] parts = new IntList[partitions];
+
+		for (int p=0;p<partitions;p++) {
+			parts[p] = new IntList();
+		}
+
+		for (int i=start;i<end;i++) {
+			int value = values.get(i);
+			parts[bounds.partitionOf(value)].add(value);
+		}
+		return parts;
+	}
+
+	/**
+	 * Collects the share of every entry in one partition from the scattered blocks.
+	 */
+	private static List<IntList> gather(int entryCount, List<IntList[]> scattered, List<Integer> taskEntries, int partition) {
+		List<IntList> lists = new ArrayList<IntList>(entryCount);
+
+		for (int i=0;i<entryCount;i++) {
+			lists.add(new IntList());
+		}
+
+		for (int t=0;t<scattered.size();t++) {
+			lists.get(taskEntries.get(t)).addAll(scattered.get(t)[partition]);
+		}
+		return lists;
+	}
+
+	private static <T> List<T> join(List<Future<T>> futures) {
+		List<T> results = new ArrayList<T>(futures.size());
+
+		try {
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("set operation interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("set operation failed", e.getCause());
+		}
+		return results;
+	}
+
+	/**
+	 * Bounds holds the smallest value of every partition but the first,
+	 * in ascending order.
+	 */
+	private static final class Bounds {
+		private final int[] lowest;
+
+		private Bounds(int[] lowest) {
+			this.lowest = lowest;
+		}
+
+		/**
+		 * Picks the bounds from a sample spread evenly over the values of
+		 * every entry, with each entry sampled in proportion to its size.
+		 * Bounds that repeat are dropped, so there may be fewer partitions
+		 * than asked for.
+		 */
+		static Bounds of(List<Entry> entries, int partitions) {
+			long total = 0;
+			for (int i=0;i<entries.size();i++) {
+				total += entries.get(i).len();
+			}
+
+			long wanted = (long) partitions * SAMPLES_PER_PARTITION;
+			IntList sample = new IntList();
+
+			for (int i=0;i<entries.size();i++) {
+				IntList values = entries.get(i).readValues();
+				long count = (values.size() * wanted + total - 1) / Math.max(1, total);
+
+				for (long k=0;k<count;k++) {
+					sample.add(values.get((int) (k * values.size() / count)));
+				}
+			}
+			sample.sort();
+
+			IntList lowest = new IntList();
+			for (int p=1;p<partitions && sample.size()>0;p++) {
+				int bound = sample.get((int) ((long) p * sample.size() / partitions));
+
+				if (lowest.size() == 0 || bound > lowest.get(lowest.size() - 1)) {
+					lowest.add(bound);
+				}
+			}
+			return new Bounds(lowest.toArray());
+		}
+
+		int partitions() {
+			return lowest.length + 1;
+		}
+
+		int partitionOf(int value) {
+			//Count the bounds at or below the value.
+			int low = 0;
+			int high = lowest.length;
+
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+
+				if (lowest[middle] <= value) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * ReadVersion is the consistent state that one read command works on.
+ *
+ * It is a snapshot taken for a single command: the entries the command
+ * reads are pinned, and a command that changes a pinned Entry changes a
+ * copy instead, so long reads never make writers wait and never see part
+ * of a change. Closing the version unpins its entries. An Entry that no
+ * reader pins is changed in place again, and old copies that no version
+ * refers to any more are reclaimed by the garbage collector.
+ */
+
+public class ReadVersion implements AutoCloseable, Iterable<Entry> {
+
+	/**
+	 * Guard keeps writers away from the keys being pinned for as long as it
+	 * takes to pin them.
+	 */
+	public interface Guard {
+		/**
+		 * Runs a pin while writers to the given keys are held off.
+		 *
+		 * @param  keys the keys being pinned, or null for every key
+		 * @param  pin  creates the version
+		 * @return      the version
+		 */
+		ReadVersion pin(List<String> keys, Supplier<ReadVersion> pin);
+	}
+
+	/** The guard for a database used by one thread at a time. */
+	public static final Guard UNGUARDED = (keys, pin) -> pin.get();
+
+	private final List<Entry> entries;
+
+	private ReadVersion(List<Entry> entries) {
+		this.entries = entries;
+	}
+
+	/**
+	 * Pins the entries of the given keys.
+	 *
+	 * @param  keyspace the keyspace of the current state
+	 * @param  keys     the keys to pin
+	 * @return          the version, with null for each key that does not exist
+	 */
+	public static ReadVersion of(Keyspace keyspace, List<String> keys) {
+		List<Entry> pinned = new ArrayList<Entry>(keys.size());
+
+		for (int i=0;i<keys.size();i++) {
+			Entry entry = keyspace.get(keys.get(i));
+
+			if (entry != null) {
+				entry.pin();
+			}
+			pinned.add(entry);
+		}
+		return new ReadVersion(pinned);
+	}
+
+	/**
+	 * Creates a version of entries that are already pinned. Closing the
+	 * version unpins them.
+	 *
+	 * @param  pinned the pinned entries, with null for keys that do not exist
+	 * @return        the version
+	 */
+	public static ReadVersion ofPinned(List<Entry> pinned) {
+		return new ReadVersion(pinned);
+	}
+
+	/**
+	 * Pins every entry of the keyspace, from most recently added to least
+	 * recently added.
+	 *
+	 * @param  keyspace the keyspace of the current state
+	 * @return          the version
+	 */
+	public static ReadVersion ofAll(Keyspace keyspace) {
+		List<Entry> pinned = keyspace.toList();
+
+		for (int i=0;i<pinned.size();i++) {
+			pinned.get(i).pin();
+		}
+		return new ReadVersion(pinned);
+	}
+
+	/**
+	 * Finds a pinned Entry.
+	 *
+	 * @param  index the position of the key, from 0
+	 * @return       the entry, or null if the key does not exist
+	 */
+	public Entry get(int index) {
+		return entries.get(index);
+	}
+
+	/**
+	 * Finds the number of keys in the version.
+	 *
+	 * @return the number of keys
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Iterates over the entries that exist.
+	 */
+	public Iterator<Entry> iterator() {
+		return entries.stream().filter(entry -> entry != null).iterator();
+	}
+
+	/**
+	 * Unpins the entries.
+	 */
+	public void close() {
+		for (int i=0;i<entries.size();i++) {
+			Entry entry = entries.get(i);
+
+			if (entry != null) {
+				entry.unpin();
+			}
+		}
+	}
+}
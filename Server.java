@@ -0,0 +1,27 @@
+import java.io.IOException;
+
+/**
+ * Server serves a database to TCP clients using the command line protocol.
+ */
+
+public interface Server {
+
+	/**
+	 * Finds the port the server is listening on.
+	 *
+	 * @return the port
+	 */
+	int getPort();
+
+	/**
+	 * Serves connections until stop is called.
+	 *
+	 * @throws IOException if the server socket fails
+	 */
+	void run() throws IOException;
+
+	/**
+	 * Makes run return.
+	 */
+	void stop();
+}
@@ -0,0 +1,254 @@
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * SetOperations computes DIFF, INTER and UNION over the values of entries.
+ * Each operation visits every value once using primitive hash sets, so the
+ * work is linear in the total number of values, apart from sorting the
+ * distinct values of the result.
+ * Results hold distinct values in ascending order.
+ *
+ * When every entry is dense, meaning its values are many and close together,
+ * the operations run over the compressed bitmaps of the entries instead.
+ * The bitmaps are cached by the entries, so repeated operations on
+ * unchanged keys skip building them.
+ *
+ * When every entry is sorted, a k-way merge streams the result out in order
+ * without hashing, see SortedMerge. Large inputs are split by value range
+ * and run in parallel, see ParallelSetOperations.
+ */
+
+public class SetOperations {
+	private enum Strategy { BITMAP, MERGE, PARALLEL, HASH }
+
+	private static final int BITMAP_MIN_VALUES = 1024;
+	private static final int BITMAP_MAX_SPREAD = 64;
+
+	private SetOperations() {
+	}
+
+	/**
+	 * Computes the values that appear in exactly one of the entries.
+	 *
+	 * @param  entries the entries
+	 * @return         the resulting values
+	 */
+	public static IntList diff(List<Entry> entries) {
+		switch (strategyFor(entries)) {
+			case BITMAP:
+				return bitmapDiff(entries);
+			case MERGE:
+				return SortedMerge.select(valuesOf(entries), 1, 1);
+			case PARALLEL:
+				return ParallelSetOperations.apply(entries, SetOperations::hashDiff);
+			default:
+				return hashDiff(valuesOf(entries));
+		}
+	}
+
+	/**
+	 * Computes the values that appear in exactly one of the lists.
+	 *
+	 * @param  lists the lists of values
+	 * @return       the resulting values
+	 */
+	static IntList hashDiff(List<IntList> lists) {
+		IntHashSet seen = new IntHashSet();
+		IntHashSet repeated = new IntHashSet();
+
+		for (int i=0;i<lists.size();i++) {
+			IntList values = lists.get(i);
+			IntHashSet entrySet = new IntHashSet(values.size());
+
+			//A value is repeated once a second entry contains it.
+			for (int k=0;k<values.size();k++) {
+				int value = values.get(k);
+
+				if (entrySet.add(value) && !seen.add(value)) {
+					repeated.add(value);
+				}
+			}
+		}
+
+		IntList seenValues = seen.toList();
+		IntList result = new IntList(seenValues.size() - repeated.size());
+
+		for (int i=0;i<seenValues.size();i++) {
+			if (!repeated.contains(seenValues.get(i))) {
+				result.add(seenValues.get(i));
+			}
+		}
+		result.sort();
+		return result;
+	}
+
+	/**
+	 * Computes the values that appear in every one of the entries.
+	 *
+	 * @param  entries the entries
+	 * @return         the resulting values
+	 */
+	public static IntList inter(List<Entry> entries) {
+		switch (strategyFor(entries)) {
+			case BITMAP:
+				return bitmapInter(entries);
+			case MERGE:
+				return SortedMerge.select(valuesOf(entries), entries.size(), entries.size());
+			case PARALLEL:
+				return ParallelSetOperations.apply(entries, SetOperations::hashInter);
+			default:
+				return hashInter(valuesOf(entries));
+		}
+	}
+
+	/**
+	 * Computes the values that appear in every one of the lists.
+	 *
+	 * @param  lists the lists of values
+	 * @return       the resulting values
+	 */
+	static IntList hashInter(List<IntList> lists) {
+		IntList first = lists.get(0);
+		IntHashSet common = new IntHashSet(first.size());
+
+		for (int k=0;k<first.size();k++) {
+			common.add(first.get(k));
+		}
+
+		//Keep only the values that the next entry also contains.
+		for (int i=1;i<lists.size() && common.size() > 0;i++) {
+			IntList values = lists.get(i);
+			IntHashSet next = new IntHashSet(Math.min(values.size(), common.size()));
+
+			for (int k=0;k<values.size();k++) {
+				if (common.contains(values.get(k))) {
+					next.add(values.get(k));
+				}
+			}
+			common = next;
+		}
+
+		IntList result = common.toList();
+		result.sort();
+		return result;
+	}
+
+	/**
+	 * Computes the values that appear in any of the entries.
+	 *
+	 * @param  entries the entries
+	 * @return         the resulting values
+	 */
+	public static IntList union(List<Entry> entries) {
+		switch (strategyFor(entries)) {
+			case BITMAP:
+				return bitmapUnion(entries);
+			case MERGE:
+				return SortedMerge.select(valuesOf(entries), 1, entries.size());
+			case PARALLEL:
+				return ParallelSetOperations.apply(entries, SetOperations::hashUnion);
+			default:
+				return hashUnion(valuesOf(entries));
+		}
+	}
+
+	/**
+	 * Computes the values that appear in any of the lists.
+	 *
+	 * @param  lists the lists of values
+	 * @return       the resulting values
+	 */
+	static IntList hashUnion(List<IntList> lists) {
+		IntHashSet all = new IntHashSet();
+
+		for (int i=0;i<lists.size();i++) {
+			IntList values = lists.get(i);
+
+			for (int k=0;k<values.size();k++) {
+				all.add(values.get(k));
+			}
+		}
+
+		IntList result = all.toList();
+		result.sort();
+		return result;
+	}
+
+	private static List<IntList> valuesOf(List<Entry> entries) {
+		List<IntList> lists = new ArrayList<IntList>(entries.size());
+
+		for (int i=0;i<entries.size();i++) {
+			lists.add(entries.get(i).readValues());
+		}
+		return lists;
+	}
+
+	private static IntList bitmapDiff(List<Entry> entries) {
+		Bitmap once = Bitmap.empty();
+		Bitmap repeated = Bitmap.empty();
+
+		//Values seen once before that the entry also has move to repeated.
+		for (int i=0;i<entries.size();i++) {
+			Bitmap values = entries.get(i).bitmap();
+			repeated = repeated.or(once.and(values));
+			once = once.xor(values).andNot(repeated);
+		}
+		return once.toList();
+	}
+
+	private static IntList bitmapInter(List<Entry> entries) {
+		Bitmap common = entries.get(0).bitmap();
+
+		for (int i=1;i<entries.size() && !common.isEmpty();i++) {
+			common = common.and(entries.get(i).bitmap());
+		}
+		return common.toList();
+	}
+
+	private static IntList bitmapUnion(List<Entry> entries) {
+		Bitmap all = Bitmap.empty();
+
+		for (int i=0;i<entries.size();i++) {
+			all = all.or(entries.get(i).bitmap());
+		}
+		return all.toList();
+	}
+
+	/**
+	 * Chooses how to run an operation. Bitmaps that are already built are
+	 * used first, then sorted entries are merged, then entries that are
+	 * dense enough for a bitmap to be smaller and faster than a hash set
+	 * get one built.
+	 */
+	private static Strategy strategyFor(List<Entry> entries) {
+		boolean allBitmaps = true;
+		boolean allSorted = true;
+		boolean allDense = true;
+
+		for (int i=0;i<entries.size();i++) {
+			Entry entry = entries.get(i);
+			allBitmaps = allBitmaps && entry.hasBitmap();
+			allSorted = allSorted && entry.isSorted();
+			allDense = allDense && (entry.hasBitmap() || isDense(entry));
+		}
+
+		if (allBitmaps) {
+			return Strategy.BITMAP;
+		} else if (allSorted) {
+			return Strategy.MERGE;
+		} else if (allDense) {
+			return Strategy.BITMAP;
+		} else if (ParallelSetOperations.isWorthwhile(entries)) {
+			return Strategy.PARALLEL;
+		}
+		return Strategy.HASH;
+	}
+
+	private static boolean isDense(Entry entry) {
+		if (entry.len() < BITMAP_MIN_VALUES) {
+			return false;
+		}
+		long range = (long) entry.max() - entry.min() + 1;
+		return range <= (long) entry.len() * BITMAP_MAX_SPREAD;
+	}
+}
@@ -0,0 +1,390 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * ShardedDatabase spreads the keys of a database over several shards. Each
+ * shard is a CrunchDB with its own current state and snapshots, used only by
+ * the shard's own thread, so commands on different shards run in parallel
+ * without locks.
+ *
+ * A command on one key is queued on the shard that owns the key. SNAPSHOT,
+ * DROP, ROLLBACK and CHECKOUT are queued on every shard, so every shard's
+ * registry hands out the same snapshot ids. Commands are queued in one
+ * global order, which makes a SNAPSHOT cover exactly the commands queued
+ * before it on every shard.
+ *
+ * DIFF, INTER, UNION, CARTPROD, LIST KEYS, LIST ENTRIES, ARCHIVE and RESTORE
+ * run on a coordinating CrunchDB with the usual parsing and output, on the
+ * caller's thread. Its reads gather the entries that the owning shards pin
+ * for it, and entries from different shards are merged back into recency
+ * order by their stamps. Its output is written straight to the caller's
+ * stream, so a long LIST ENTRIES or CARTPROD is never held in memory.
+ */
+
+public class ShardedDatabase implements SharedDatabase, ReadVersion.Guard {
+	private static final int MAX_IN_FLIGHT = 4096;
+
+	private static final Comparator<Entry> MOST_RECENT_FIRST =
+		Comparator.comparingLong(Entry::getStamp).reversed();
+
+	private final Shard[] shards;
+	private final Coordinator coordinator;
+	private final Object queueLock;
+	private final Object fileLock;
+	private final ThreadLocal<Tokenizer> tokenizer = ThreadLocal.withInitial(Tokenizer::new);
+
+	/**
+	 * Starts the shards.
+	 *
+	 * @param shardCount the number of shards
+	 */
+	public ShardedDatabase(int shardCount) {
+		this.shards = new Shard[shardCount];
+
+		for (int i=0;i<shardCount;i++) {
+			shards[i] = new Shard(i);
+		}
+		this.coordinator = new Coordinator();
+		this.coordinator.setReadGuard(this);
+		this.queueLock = new Object();
+		this.fileLock = new Object();
+	}
+
+	/**
+	 * Runs one command line and waits for its output.
+	 *
+	 * @param  line the command line
+	 * @param  out  the stream the output of the command is written to
+	 * @return      false if the command was BYE
+	 */
+	public boolean execute(String line, PrintStream out) {
+		Tokenizer tokens = tokenizer.get();
+		tokens.tokenize(line);
+		Command.Route route = routeOf(tokens);
+		boolean bye = isBye(tokens);
+
+		if (route == Command.Route.COORDINATOR || route == Command.Route.FILE) {
+			coordinate(line, route, out);
+		} else {
+			out.print(await(submit(line, tokens, route)));
+		}
+		return !bye;
+	}
+
+	/**
+	 * Reads commands and writes their output like the command line does.
+	 * Commands are queued without waiting for the ones before them, and
+	 * their output is written in order as soon as it is ready. A command
+	 * that runs on the coordinator first writes the output of the commands
+	 * before it.
+	 *
+	 * @param  in          the commands
+	 * @param  out         the stream the output is written to
+	 * @throws IOException if the commands cannot be read
+	 */
+	public void run(BufferedReader in, PrintStream out) throws IOException {
+		Deque<Future<String>> replies = new ArrayDeque<Future<String>>();
+		Tokenizer tokens = tokenizer.get();
+		String line;
+		out.print("> ");
+
+		while ((line = in.readLine()) != null) {
+			tokens.tokenize(line);
+			Command.Route route = routeOf(tokens);
+
+			if (isBye(tokens)) {
+				while (!replies.isEmpty()) {
+					writeReply(replies.poll(), out);
+				}
+				out.print(await(submit(line, tokens, route)));
+				break;
+			}
+
+			if (route == Command.Route.COORDINATOR || route == Command.Route.FILE) {
+				while (!replies.isEmpty()) {
+					writeReply(replies.poll(), out);
+				}
+				coordinate(line, route, out);
+				out.print("\n> ");
+				continue;
+			}
+			replies.add(submit(line, tokens, route));
+
+			//Wait for everything once the input runs dry, so a user typing commands sees each reply.
+			while (!replies.isEmpty() && (!in.ready() || replies.size() > MAX_IN_FLIGHT || replies.peek().isDone())) {
+				writeReply(replies.poll(), out);
+			}
+		}
+
+		while (!replies.isEmpty()) {
+			writeReply(replies.poll(), out);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Queues a command line that runs on the shards.
+	 *
+	 * @param  line   the command line
+	 * @param  tokens the tokens of the line
+	 * @param  route  where the command runs
+	 * @return        the output of the command once it has run
+	 */
+	private Future<String> submit(String line, Tokenizer tokens, Command.Route route) {
+		if (route == Command.Route.KEY && tokens.count() >= 2) {
+			Shard shard = shardOf(tokens.token(1));
+
+			synchronized (queueLock) {
+				return shard.run(line, coordinator.takeStamps(1));
+			}
+		}
+
+		if (route == Command.Route.EVERY_SHARD) {
+			List<Future<String>> replies = new ArrayList<Future<String>>();
+
+			synchronized (queueLock) {
+				long stamp = coordinator.takeStamps(1);
+
+				for (Shard shard : shards) {
+					replies.add(shard.run(line, stamp));
+				}
+			}
+			//Every shard has the same snapshots, so every shard gives the same reply.
+			return replies.get(0);
+		}
+
+		//HELP, BYE, LIST SNAPSHOTS and malformed commands give the same reply on any shard.
+		synchronized (queueLock) {
+			return shards[0].run(line, coordinator.takeStamps(1));
+		}
+	}
+
+	/**
+	 * Waits for the queued commands and background archives, then stops the shards.
+	 */
+	public void close() {
+		coordinator.close();
+
+		for (Shard shard : shards) {
+			shard.thread.shutdown();
+		}
+	}
+
+	/**
+	 * Pins the entries of keys, or every entry, in the shards that own them.
+	 * The pins are queued on all the shards involved at once, so the
+	 * version is consistent across shards.
+	 */
+	public ReadVersion pin(List<String> keys, Supplier<ReadVersion> ignored) {
+		if (keys == null) {
+			List<Future<ReadVersion>> parts = new ArrayList<Future<ReadVersion>>();
+
+			synchronized (queueLock) {
+				for (Shard shard : shards) {
+					parts.add(shard.call(() -> shard.database.pinEntries(null)));
+				}
+			}
+
+			List<Entry> pinned = new ArrayList<Entry>();
+
+			for (Future<ReadVersion> part : parts) {
+				for (Entry entry : await(part)) {
+					pinned.add(entry);
+				}
+			}
+			pinned.sort(MOST_RECENT_FIRST);
+			return ReadVersion.ofPinned(pinned);
+		}
+
+		List<List<String>> shardKeys = new ArrayList<List<String>>();
+		List<Future<ReadVersion>> parts = new ArrayList<Future<ReadVersion>>();
+
+		for (int i=0;i<shards.length;i++) {
+			shardKeys.add(new ArrayList<String>());
+		}
+		for (String key : keys) {
+			shardKeys.get(shardIndexOf(key)).add(key);
+		}
+
+		synchronized (queueLock) {
+			for (int i=0;i<shards.length;i++) {
+				Shard shard = shards[i];
+				List<String> owned = shardKeys.get(i);
+				parts.add(owned.isEmpty() ? null : shard.call(() -> shard.database.pinEntries(owned)));
+			}
+		}
+
+		//Put the pinned entries back in the order of the keys.
+		ReadVersion[] versions = new ReadVersion[shards.length];
+		int[] next = new int[shards.length];
+		List<Entry> pinned = new ArrayList<Entry>(keys.size());
+
+		for (int i=0;i<shards.length;i++) {
+			versions[i] = (parts.get(i) == null) ? null : await(parts.get(i));
+		}
+		for (String key : keys) {
+			int shard = shardIndexOf(key);
+			pinned.add(versions[shard].get(next[shard]++));
+		}
+		return ReadVersion.ofPinned(pinned);
+	}
+
+	/**
+	 * Runs a command on the coordinator, writing its output as it goes.
+	 */
+	private void coordinate(String line, Command.Route route, PrintStream out) {
+		coordinator.setOutput(out);
+
+		if (route == Command.Route.FILE) {
+			synchronized (fileLock) {
+				coordinator.execute(line);
+			}
+		} else {
+			coordinator.execute(line);
+		}
+	}
+
+	private static Command.Route routeOf(Tokenizer tokens) {
+		Command command = Command.find(tokens, 0);
+		return (command == null) ? Command.Route.ANY : command.route(tokens);
+	}
+
+	private Shard shardOf(String key) {
+		return shards[shardIndexOf(key)];
+	}
+
+	private int shardIndexOf(String key) {
+		int hash = key.hashCode();
+		return Math.floorMod(hash ^ (hash >>> 16), shards.length);
+	}
+
+	private static boolean isBye(Tokenizer tokens) {
+		return tokens.count() == 1 && tokens.is(0, "bye");
+	}
+
+	private static void writeReply(Future<String> reply, PrintStream out) {
+		out.print(await(reply));
+		out.print("\n> ");
+	}
+
+	private static <T> T await(Future<T> result) {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for a shard", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("a shard failed to run a command", e.getCause());
+		}
+	}
+
+	/**
+	 * Shard is one part of the keys, with the thread that runs its commands.
+	 */
+	private static final class Shard {
+		private final CrunchDB database;
+		private final ExecutorService thread;
+		private final ByteArrayOutputStream buffer;
+		private final PrintStream printer;
+
+		Shard(int number) {
+			this.database = new CrunchDB();
+			this.thread = Executors.newSingleThreadExecutor(task -> {
+				Thread shardThread = new Thread(task, "shard-" + number);
+				shardThread.setDaemon(true);
+				return shardThread;
+			});
+			this.buffer = new ByteArrayOutputStream();
+			this.printer = new PrintStream(buffer, false, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Queues a command, giving any key it adds the given stamp.
+		 */
+		Future<String> run(String line, long stamp) {
+			return thread.submit(() -> {
+				buffer.reset();
+				database.setOutput(printer);
+				database.setNextStamp(stamp);
+				database.execute(line);
+				printer.flush();
+				return buffer.toString(StandardCharsets.UTF_8);
+			});
+		}
+
+		<T> Future<T> call(Callable<T> task) {
+			return thread.submit(task);
+		}
+	}
+
+	/**
+	 * Coordinator runs the commands that involve every shard. It keeps no
+	 * entries of its own; snapshots and restores are passed on to the shards.
+	 */
+	private final class Coordinator extends CrunchDB {
+
+		protected List<Entry> snapshotEntries(int id) {
+			List<Future<List<Entry>>> parts = new ArrayList<Future<List<Entry>>>();
+
+			synchronized (queueLock) {
+				for (Shard shard : shards) {
+					parts.add(shard.call(() -> shard.database.snapshotEntries(id)));
+				}
+			}
+
+			List<Entry> merged = new ArrayList<Entry>();
+
+			for (Future<List<Entry>> part : parts) {
+				List<Entry> shardEntries = await(part);
+
+				if (shardEntries == null) {
+					return null;
+				}
+				merged.addAll(shardEntries);
+			}
+			merged.sort(MOST_RECENT_FIRST);
+			return merged;
+		}
+
+		protected void restoreEntries(List<Entry> newEntries) {
+			List<List<Entry>> parts = new ArrayList<List<Entry>>();
+			List<Future<?>> restored = new ArrayList<Future<?>>();
+
+			for (int i=0;i<shards.length;i++) {
+				parts.add(new ArrayList<Entry>());
+			}
+			for (Entry entry : newEntries) {
+				parts.get(shardIndexOf(entry.getKey())).add(entry);
+			}
+
+			synchronized (queueLock) {
+				for (int i=0;i<shards.length;i++) {
+					Shard shard = shards[i];
+					List<Entry> part = parts.get(i);
+					restored.add(shard.call(() -> {
+						shard.database.restoreEntries(part);
+						return null;
+					}));
+				}
+			}
+
+			for (Future<?> done : restored) {
+				await(done);
+			}
+		}
+	}
+}
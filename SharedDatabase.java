@@ -0,0 +1,17 @@
+import java.io.PrintStream;
+
+/**
+ * SharedDatabase is a database that many threads can run commands on at once.
+ */
+
+public interface SharedDatabase {
+
+	/**
+	 * Runs one command line.
+	 *
+	 * @param  line the command line
+	 * @param  out  the stream the output of the command is written to
+	 * @return      false if the command was BYE
+	 */
+	boolean execute(String line, PrintStream out);
+}
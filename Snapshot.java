@@ -1,47 +1,64 @@
 import java.util.List;
-import java.io.FileWriter;
-import java.io.File;
-import java.util.Scanner;
-import java.util.ArrayList;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 
 /**
  * Snapshot deals with storing the id and current state of the database. 
  * As well as storing this data, the Snapshot class should manage operations
  * related to snapshots.
+ *
+ * The entries of a snapshot are frozen and shared with the current state
+ * and with other snapshots, so taking a snapshot never copies values.
+ * Most snapshots only store the keys that changed since the snapshot below
+ * them; every CHECKPOINT_INTERVAL layers a full copy of the index is kept so
+ * that reading a snapshot never walks a long chain.
  */
 
 public class Snapshot {
+	public static final int CHECKPOINT_INTERVAL = 16;
+
 	private int id;
-	private List<Entry> entries;
+	private Keyspace entries;
 
-	public Snapshot(int id, List<Entry> entries) {
-		/* Initialises the id and ArrayList of entries. We make a deep copy of the list so that it is not aliased. */
+	public Snapshot(int id, Keyspace entries) {
+		/* Initialises the id and the entries. The keyspace is kept by the snapshot and every Entry in it is frozen. */
 		this.id = id;
-		List<Entry> allEntries = new ArrayList<Entry>();
-		
-		//Make a deep copy of the list of entries to be saved as a snapshot
-		for (int i=0;i<entries.size();i++) {
-			Entry newEntry = new Entry(entries.get(i).getKey(), entries.get(i).getValues());
-			allEntries.add(newEntry);
+		entries.freeze();
+		entries.retain();
+		this.entries = entries;
+	}
+
+	/**
+	 * Creates a snapshot of the current state. A layered state becomes the
+	 * snapshot as it is, unless the chain below it is long enough to need a
+	 * full checkpoint.
+	 *
+	 * @param  id      the id of the snapshot
+	 * @param  current the keyspace of the current state
+	 * @return         the new snapshot
+	 */
+	public static Snapshot of(int id, Keyspace current) {
+		if (current.depth() < CHECKPOINT_INTERVAL) {
+			return new Snapshot(id, current);
 		}
-		
-		this.entries = allEntries;
+
+		Keyspace checkpoint = current.copy();
+		current.discard();
+		return new Snapshot(id, checkpoint);
+	}
+
+	/**
+	 * Lets go of the entries when the snapshot is deleted. Its changes stay
+	 * available to any later snapshot that was layered on top of it.
+	 */
+	public void discard() {
+		entries.discard();
 	}
 	
 	/**
 	 * Method to check whether the snapshot contains a given key.
 	 */
 	public boolean hasKey(String key) {
-		
-		//Run a for loop over the list of entries to determine if the snapshot has the key.
-		for (int i=0;i<entries.size();i++) {
-			if (entries.get(i).getKey().equals(key)) {
-				return true;
-			}
-		}
-
-		return false;
+		return entries.contains(key);
 	}
 	
 	
@@ -54,134 +71,46 @@ public class Snapshot {
 	
 	
 	/**
-	 * Getter method for returning entires in the current snapshot.
+	 * Getter method for returning entries in the current snapshot.
+	 * The entries are frozen and the keyspace must not be changed by the caller.
 	 */
-	public List<Entry> getEntries() {
-		List<Entry> returnEntries = new ArrayList<Entry>();
-		
-		//Run a loop to make a deep copy of the Entry objects to retrurn to ensure that lists are not aliased.
-		for (int i=0;i<entries.size();i++) {
-			Entry newEntry = new Entry(entries.get(i).getKey(), entries.get(i).getValues());
-			returnEntries.add(newEntry);
-		}
-		
-		return returnEntries;
+	public Keyspace getEntries() {
+		return entries;
 	}
 	
 	
 	/**
-	 * Finds and removes the key.
+	 * Finds the entries to restore.
+	 * The restored state is an empty layer over the entries of the snapshot,
+	 * so no Entry is copied until it is next changed.
 	 *
-	 * @param key the key to remove
+	 * @return the keyspace of the restored state
 	 */
-	public void removeKey(String key) {
-		//Run a for loop to find the Entry objects that match the given key and remove them.
-		for (int i=0;i<entries.size();i++) {
-			if (entries.get(i).getKey().equals(key)) {
-				entries.remove(i);
-				i--;
-			}
-		}
-	}
-
-	/**
-	 * Finds the list of entries to restore.
-	 *
-	 * @return the list of entries in the restored state
-	 */
-	public List<Entry> rollback() {
-		List<Entry> copyList = new ArrayList<Entry>();
-		
-		//Run a for loop over the entries to make and return a deep copy of the list.
-		for (int i=0;i<entries.size();i++) {
-			Entry newEntry = new Entry(entries.get(i).getKey(), entries.get(i).getValues());
-			copyList.add(newEntry);
-		}
-		
-		return copyList;
+	public Keyspace rollback() {
+		return new Keyspace(entries);
 	}
 
 
 	/**
 	 * Saves the snapshot to file.
 	 *
-	 * @param filename the name of the file
+	 * @param  filename    the name of the file
+	 * @param  format      the format to write
+	 * @throws IOException if the file cannot be written
 	 */
-	public void archive(String filename) {
-		try {
-			FileWriter outfileWriter = new FileWriter(filename);
-
-			//Iterate over each entry stored in the current list of entries to format and store each key and list of values.
-			for (int i=0;i<entries.size();i++) {
-				outfileWriter.write(entries.get(i).getKey() + "|");
-				List<Integer> entryValues = entries.get(i).getValues();
-
-				//For each list of values, format the integers.
-				for (int k=0;k<entryValues.size();k++) {
-					outfileWriter.write(entryValues.get(k) + "");
-					
-					if (k == entryValues.size()-1) {
-						break;
-					} else {
-						outfileWriter.write(",");
-					}
-				}
-				
-				outfileWriter.write("\n");
-			}
-			
-			outfileWriter.close();
-
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+	public void archive(String filename, Archive.Format format) throws IOException {
+		Archive.write(entries, filename, format);
 	}
 
 	/**
-	 * Loads and restores a snapshot from file.
+	 * Loads and restores a snapshot from file. The format is detected from the file.
 	 *
-	 * @param  filename the name of the file
-	 * @return          the list of entries in the restored state
+	 * @param  filename    the name of the file
+	 * @return             the list of entries in the restored state
+	 * @throws IOException if the file cannot be read or is not a valid archive
 	 */
-	public static List<Entry> restore(String filename) {
-		List<Entry> allEntries = new ArrayList<Entry>();
-
-		try {
-			File restoreFile = new File(filename);
-			Scanner infile = new Scanner(restoreFile);
-
-			//Use the file to get the key convert the values to integers, and create a list of Entry objects.
-			while (infile.hasNextLine()) {
-				String[] newLine = infile.nextLine().split("\\|");
-				String key = newLine[0];
-				String[] newValues = newLine[1].split(",");
-				ArrayList<Integer> allValues = new ArrayList<>();
-
-				//Iterate over the values in each line of the file, convert them to integers and then add then to a list.
-				for (int i=0;i<newValues.length;i++) {
-					allValues.add(Integer.parseInt(newValues[i]));
-				}
-
-				if (allValues.size()==0) {
-					continue;
-				} else if (key == null) {
-					continue;
-				} else {
-					//Create entry objects and store these objects in the list of entry objects.
-					Entry newObject = new Entry(key, allValues);
-					allEntries.add(newObject);
-				}
-			}
-
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-
-		return allEntries;
+	public static List<Entry> restore(String filename) throws IOException {
+		return Archive.read(filename);
 	}
 
 	/**
@@ -190,20 +119,19 @@ public class Snapshot {
 	 * @param  snapshots the snapshots to display
 	 * @return           the snapshots ready to display
 	 */
-	public static String listAllSnapshots(List<Snapshot> snapshots) {
+	public static String listAllSnapshots(SnapshotRegistry snapshots) {
 		
 		if (snapshots.size() == 0) {
 			return "no snapshots";
 		} else {
 			StringBuilder returnString = new StringBuilder();
 
-			//Loop over the snapshots to format their ids and, if we reach the second last element, do not add a new line character.
-			for (int i=0;i<snapshots.size();i++) {
-				returnString.append(snapshots.get(i).getId());
-				if (i==snapshots.size()-1) {
-					break;
-				} 
-				returnString.append("\n");
+			//Loop over the snapshots to format their ids, adding a new line character before all but the first.
+			for (Snapshot snapshot : snapshots) {
+				if (returnString.length() > 0) {
+					returnString.append("\n");
+				}
+				returnString.append(snapshot.getId());
 			}
 
 			return returnString.toString();
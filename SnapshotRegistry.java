@@ -0,0 +1,118 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * SnapshotRegistry stores the snapshots of the database by id.
+ * Looking up, adding and deleting a snapshot is O(log n), and snapshots are
+ * listed from most recently added to least recently added.
+ * Ids are handed out in increasing order and never reused for the lifetime
+ * of the registry.
+ */
+
+public class SnapshotRegistry implements Iterable<Snapshot> {
+	private NavigableMap<Integer, Snapshot> snapshots;
+	private int lastId;
+
+	public SnapshotRegistry() {
+		snapshots = new TreeMap<Integer, Snapshot>();
+		lastId = 0;
+	}
+
+	/**
+	 * Finds the id to use for the next snapshot.
+	 *
+	 * @return the next id
+	 */
+	public int nextId() {
+		return lastId + 1;
+	}
+
+	/**
+	 * Makes sure later snapshots get ids greater than the given one.
+	 *
+	 * @param id the id that was last handed out
+	 */
+	public void skipTo(int id) {
+		lastId = Math.max(lastId, id);
+	}
+
+	/**
+	 * Finds the id that was last handed out.
+	 *
+	 * @return the last id, or 0 if none was handed out
+	 */
+	public int lastId() {
+		return lastId;
+	}
+
+	/**
+	 * Adds a snapshot as the most recent one.
+	 *
+	 * @param snapshot the snapshot to add
+	 */
+	public void add(Snapshot snapshot) {
+		snapshots.put(snapshot.getId(), snapshot);
+		lastId = Math.max(lastId, snapshot.getId());
+	}
+
+	/**
+	 * Finds the snapshot with the given id.
+	 *
+	 * @param  id the id of the snapshot
+	 * @return    the snapshot, or null if there is no such snapshot
+	 */
+	public Snapshot get(int id) {
+		return snapshots.get(id);
+	}
+
+	/**
+	 * Finds and removes the snapshot with the given id.
+	 *
+	 * @param  id the id of the snapshot
+	 * @return    the removed snapshot, or null if there is no such snapshot
+	 */
+	public Snapshot remove(int id) {
+		return snapshots.remove(id);
+	}
+
+	/**
+	 * Removes every snapshot that is newer than the given id.
+	 *
+	 * @param  id the id of the snapshot to keep
+	 * @return    the removed snapshots, most recent first
+	 */
+	public List<Snapshot> removeNewerThan(int id) {
+		NavigableMap<Integer, Snapshot> newer = snapshots.tailMap(id, false);
+		List<Snapshot> removed = new ArrayList<Snapshot>(newer.descendingMap().values());
+		newer.clear();
+		return removed;
+	}
+
+	/**
+	 * Removes every snapshot.
+	 *
+	 * @return the removed snapshots, most recent first
+	 */
+	public List<Snapshot> clear() {
+		return removeNewerThan(0);
+	}
+
+	/**
+	 * Finds the number of snapshots.
+	 *
+	 * @return the number of snapshots
+	 */
+	public int size() {
+		return snapshots.size();
+	}
+
+	/**
+	 * Iterates over the snapshots from most recent to least recent.
+	 */
+	public Iterator<Snapshot> iterator() {
+		return snapshots.descendingMap().values().iterator();
+	}
+}
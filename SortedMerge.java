@@ -0,0 +1,127 @@
+import java.util.List;
+
+/**
+ * SortedMerge runs set operations over lists that are already in ascending
+ * order with a k-way merge. A heap holds the list with the smallest next
+ * value on top, so each value is visited once in O(log k) time and the
+ * output comes out sorted. Apart from the result it only needs a cursor and
+ * a heap slot per list.
+ */
+
+public class SortedMerge {
+	private IntList[] lists;
+	private int[] cursors;
+	private int[] heap;
+	private int heapSize;
+
+	private SortedMerge(List<IntList> lists) {
+		this.lists = lists.toArray(new IntList[0]);
+		this.cursors = new int[this.lists.length];
+		this.heap = new int[this.lists.length];
+		this.heapSize = 0;
+
+		for (int i=0;i<this.lists.length;i++) {
+			if (this.lists[i].size() > 0) {
+				push(i);
+			}
+		}
+	}
+
+	/**
+	 * Finds the distinct values that are contained in at least minCount
+	 * and at most maxCount of the sorted lists.
+	 *
+	 * @param  lists    the lists of values, each in ascending order
+	 * @param  minCount the least number of lists a value must be in
+	 * @param  maxCount the most number of lists a value may be in
+	 * @return          the resulting values in ascending order
+	 */
+	public static IntList select(List<IntList> lists, int minCount, int maxCount) {
+		SortedMerge merge = new SortedMerge(lists);
+		IntList result = new IntList();
+
+		//A value can no longer reach minCount once too few lists are left.
+		while (merge.heapSize >= minCount && merge.heapSize > 0) {
+			int value = merge.peekValue();
+			int count = 0;
+
+			while (merge.heapSize > 0 && merge.peekValue() == value) {
+				int list = merge.pop();
+				merge.skip(list, value);
+				count++;
+
+				if (merge.cursors[list] < merge.lists[list].size()) {
+					merge.push(list);
+				}
+			}
+
+			if (count >= minCount && count <= maxCount) {
+				result.add(value);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Moves the cursor of a list past every copy of the value.
+	 */
+	private void skip(int list, int value) {
+		IntList values = lists[list];
+
+		while (cursors[list] < values.size() && values.get(cursors[list]) == value) {
+			cursors[list]++;
+		}
+	}
+
+	private int valueOf(int list) {
+		return lists[list].get(cursors[list]);
+	}
+
+	private int peekValue() {
+		return valueOf(heap[0]);
+	}
+
+	private void push(int list) {
+		int slot = heapSize++;
+		int value = valueOf(list);
+
+		while (slot > 0) {
+			int parent = (slot - 1) / 2;
+
+			if (valueOf(heap[parent]) <= value) {
+				break;
+			}
+			heap[slot] = heap[parent];
+			slot = parent;
+		}
+		heap[slot] = list;
+	}
+
+	private int pop() {
+		int top = heap[0];
+		int last = heap[--heapSize];
+		int value = (heapSize > 0) ? valueOf(last) : 0;
+		int slot = 0;
+
+		while (heapSize > 0) {
+			int child = 2 * slot + 1;
+
+			if (child >= heapSize) {
+				break;
+			}
+			if (child + 1 < heapSize && valueOf(heap[child + 1]) < valueOf(heap[child])) {
+				child++;
+			}
+			if (value <= valueOf(heap[child])) {
+				break;
+			}
+			heap[slot] = heap[child];
+			slot = child;
+		}
+
+		if (heapSize > 0) {
+			heap[slot] = last;
+		}
+		return top;
+	}
+}
@@ -0,0 +1,326 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * TextArchive reads and writes the human-readable archive format, one line
+ * per entry with the key and its values: "key|v1,v2,...".
+ */
+
+public class TextArchive {
+
+	private TextArchive() {
+	}
+
+	/**
+	 * Saves the entries to a text file.
+	 *
+	 * @param  entries     the entries to save
+	 * @param  filename    the name of the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(Iterable<Entry> entries, String filename) throws IOException {
+		try (BufferedWriter outfileWriter = new BufferedWriter(new FileWriter(filename, StandardCharsets.UTF_8))) {
+			StringBuilder line = new StringBuilder();
+
+			//Format each entry as its key followed by its values.
+			for (Entry entry : entries) {
+				IntList entryValues = entry.readValues();
+				line.setLength(0);
+				line.append(entry.getKey()).append("|");
+
+				for (int k=0;k<entryValues.size();k++) {
+					if (k > 0) {
+						line.append(",");
+					}
+					line.append(entryValues.get(k));
+				}
+
+				line.append("\n");
+				outfileWriter.append(line);
+			}
+		}
+	}
+
+	/**
+	 * Loads the entries from a text file. Entries without values and blank
+	 * lines are skipped. Malformed lines are reported with their line numbers
+	 * on standard error and skipped, the rest of the file is still loaded.
+	 *
+	 * @param  filename    the name of the file
+	 * @return             the entries in the order they were saved
+	 * @throws IOException if the file cannot be read
+	 */
+	public static List<Entry> read(String filename) throws IOException {
+		try (InputStream in = Files.newInputStream(Paths.get(filename))) {
+			return new Parser(filename).parse(in);
+		}
+	}
+
+	/**
+	 * Parser reads the text format straight from bytes, one large chunk at a
+	 * time, parsing digits into a reused batch of ints instead of splitting
+	 * each line into strings.
+	 */
+	private static final class Parser {
+		private static final int CHUNK_SIZE = 1 << 20;
+		private static final int BATCH_SIZE = 4096;
+		private static final int MAX_REPORTS = 20;
+
+		private static final int KEY = 0;
+		private static final int VALUE_START = 1;
+		private static final int SIGN = 2;
+		private static final int DIGITS = 3;
+		private static final int SKIP = 4;
+
+		private final String filename;
+		private final List<Entry> entries;
+		private final IntList values;
+		private final int[] batch;
+		private int batchSize;
+		private byte[] key;
+		private int keyLength;
+		private long lineNumber;
+		private int malformedLines;
+
+		private int state = KEY;
+		private long value;
+		private boolean negative;
+		private boolean carriageReturn;
+		private boolean lineStarted;
+
+		Parser(String filename) {
+			this.filename = filename;
+			this.entries = new ArrayList<Entry>();
+			this.values = new IntList();
+			this.batch = new int[BATCH_SIZE];
+			this.batchSize = 0;
+			this.key = new byte[64];
+			this.keyLength = 0;
+			this.lineNumber = 1;
+			this.malformedLines = 0;
+		}
+
+		List<Entry> parse(InputStream in) throws IOException {
+			byte[] chunk = new byte[CHUNK_SIZE];
+			int read;
+
+			while ((read = in.read(chunk)) > 0) {
+				parseChunk(chunk, read);
+			}
+
+			if (lineStarted || state != KEY) {
+				if (state == DIGITS && !addValue(value, negative)) {
+					state = malformed("value out of range");
+				}
+				endLine(state, lineStarted);
+			}
+
+			if (malformedLines > MAX_REPORTS) {
+				System.err.println(filename + ": " + (malformedLines - MAX_REPORTS) + " more malformed lines skipped");
+			}
+			return entries;
+		}
+
+		private void parseChunk(byte[] chunk, int length) {
+			int i = 0;
+
+			while (i < length) {
+				//Values that fit in the chunk are parsed in one go.
+				if (state == VALUE_START && !carriageReturn) {
+					int end = parseValue(chunk, i, length);
+
+					if (end >= 0) {
+						i = end + 1;
+
+						if (chunk[end] == '\n') {
+							endLine(DIGITS, true);
+							lineStarted = false;
+							state = KEY;
+						}
+						continue;
+					}
+				}
+				parseByte(chunk[i]);
+				i++;
+			}
+		}
+
+		/**
+		 * Parses one whole value followed by a comma or line break.
+		 *
+		 * @return the index of the byte after the value, or -1 if the value
+		 *         is unusual or runs past the chunk and must go byte by byte
+		 */
+		private int parseValue(byte[] chunk, int start, int length) {
+			int i = start;
+			boolean isNegative = false;
+
+			if (chunk[i] == '-') {
+				isNegative = true;
+				i++;
+			}
+
+			int digitsStart = i;
+			long number = 0;
+
+			while (i < length && i - digitsStart < 10 && chunk[i] >= '0' && chunk[i] <= '9') {
+				number = number * 10 + (chunk[i] - '0');
+				i++;
+			}
+
+			if (i == digitsStart || i >= length || (chunk[i] != ',' && chunk[i] != '\n')) {
+				return -1;
+			}
+			if (!addValue(number, isNegative)) {
+				return -1;
+			}
+			return i;
+		}
+
+		private void parseByte(byte b) {
+			if (b == '\n') {
+				if (state == DIGITS && !addValue(value, negative)) {
+					state = malformed("value out of range");
+				}
+				endLine(state, lineStarted);
+				state = KEY;
+				negative = false;
+				carriageReturn = false;
+				lineStarted = false;
+				return;
+			}
+
+			if (state == SKIP) {
+				return;
+			}
+			if (carriageReturn) {
+				state = malformed("unexpected carriage return");
+				return;
+			}
+			//A carriage return is only allowed right before the line break.
+			if (b == '\r') {
+				carriageReturn = true;
+				return;
+			}
+			lineStarted = true;
+
+			switch (state) {
+				case KEY:
+					if (b == '|') {
+						state = VALUE_START;
+					} else {
+						appendKey(b);
+					}
+					break;
+
+				case VALUE_START:
+				case SIGN:
+					if (b >= '0' && b <= '9') {
+						value = b - '0';
+						state = DIGITS;
+					} else if (state == VALUE_START && (b == '-' || b == '+')) {
+						negative = (b == '-');
+						state = SIGN;
+					} else {
+						state = malformed("missing value");
+					}
+					break;
+
+				case DIGITS:
+					if (b >= '0' && b <= '9') {
+						value = value * 10 + (b - '0');
+
+						if (value > 2147483648L) {
+							state = malformed("value out of range");
+						}
+					} else if (b == ',') {
+						if (!addValue(value, negative)) {
+							state = malformed("value out of range");
+						} else {
+							state = VALUE_START;
+							negative = false;
+						}
+					} else {
+						state = malformed("invalid character in value");
+					}
+					break;
+			}
+		}
+
+		/**
+		 * Adds a parsed value, checking that it fits in an int.
+		 *
+		 * @return false if the value is out of range
+		 */
+		private boolean addValue(long value, boolean negative) {
+			long signed = negative ? -value : value;
+
+			if (signed > Integer.MAX_VALUE) {
+				return false;
+			}
+			batch[batchSize++] = (int) signed;
+
+			if (batchSize == batch.length) {
+				flushBatch();
+			}
+			return true;
+		}
+
+		/**
+		 * Moves the values collected in the batch into the list of values.
+		 */
+		private void flushBatch() {
+			values.addAll(batch, 0, batchSize);
+			batchSize = 0;
+		}
+
+		/**
+		 * Creates the entry of a finished line and resets for the next line.
+		 */
+		private void endLine(int state, boolean lineStarted) {
+			flushBatch();
+
+			if (state == KEY && lineStarted) {
+				malformed("missing |");
+			} else if (state == SIGN || (state == VALUE_START && values.size() > 0)) {
+				malformed("missing value");
+			} else if (state != SKIP && values.size() > 0) {
+				String keyString = new String(key, 0, keyLength, StandardCharsets.UTF_8);
+				entries.add(new Entry(keyString, values));
+			}
+
+			values.clear();
+			keyLength = 0;
+			lineNumber++;
+		}
+
+		private void appendKey(byte b) {
+			if (keyLength == key.length) {
+				key = Arrays.copyOf(key, keyLength * 2);
+			}
+			key[keyLength++] = b;
+		}
+
+		/**
+		 * Reports the current line as malformed.
+		 *
+		 * @return the state that skips the rest of the line
+		 */
+		private int malformed(String reason) {
+			malformedLines++;
+
+			if (malformedLines <= MAX_REPORTS) {
+				System.err.println(filename + ":" + lineNumber + ": " + reason + ", line skipped");
+			}
+			return SKIP;
+		}
+	}
+}
@@ -0,0 +1,248 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tokenizer splits a command line into tokens without regular expressions.
+ *
+ * The line is trimmed and split on single spaces exactly like
+ * line.trim().split(" "), so two spaces in a row still make an empty token.
+ * Tokens are kept as offsets into the bytes of the line, and only become
+ * Strings when a command asks for one. Numbers are parsed straight from the
+ * bytes. A Tokenizer is reused for every command of one thread.
+ */
+
+public class Tokenizer {
+	/** Returned by number for a token that is not a valid int. */
+	public static final long NOT_A_NUMBER = Long.MIN_VALUE;
+
+	private byte[] line;
+	private int lineStart;
+	private int lineEnd;
+	private int[] starts;
+	private int[] ends;
+	private int count;
+	private byte[] encoded;
+
+	public Tokenizer() {
+		starts = new int[16];
+		ends = new int[16];
+		encoded = new byte[256];
+	}
+
+	/**
+	 * Splits a line given as a String.
+	 *
+	 * @param text the line
+	 */
+	public void tokenize(String text) {
+		int length = text.length();
+
+		if (encoded.length < length) {
+			encoded = new byte[Math.max(encoded.length * 2, length)];
+		}
+
+		for (int i=0;i<length;i++) {
+			char c = text.charAt(i);
+
+			if (c >= 0x80) {
+				byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+				tokenize(bytes, 0, bytes.length);
+				return;
+			}
+			encoded[i] = (byte) c;
+		}
+		tokenize(encoded, 0, length);
+	}
+
+	/**
+	 * Splits a line given as UTF-8 bytes. The bytes must not change while the
+	 * tokens are in use.
+	 *
+	 * @param bytes the bytes holding the line
+	 * @param start the index of the first byte of the line
+	 * @param end   the index after the last byte of the line
+	 */
+	public void tokenize(byte[] bytes, int start, int end) {
+		this.line = bytes;
+		this.lineStart = start;
+		this.lineEnd = end;
+
+		while (start < end && (bytes[start] & 0xff) <= ' ') {
+			start++;
+		}
+		while (end > start && (bytes[end - 1] & 0xff) <= ' ') {
+			end--;
+		}
+
+		int[] tokenStarts = starts;
+		int[] tokenEnds = ends;
+		int tokens = 0;
+		int tokenStart = start;
+
+		for (int i=start;i<=end;i++) {
+			if (i == end || bytes[i] == ' ') {
+				if (tokens == tokenStarts.length) {
+					tokenStarts = starts = Arrays.copyOf(tokenStarts, tokens * 2);
+					tokenEnds = ends = Arrays.copyOf(tokenEnds, tokens * 2);
+				}
+				tokenStarts[tokens] = tokenStart;
+				tokenEnds[tokens] = i;
+				tokens++;
+				tokenStart = i + 1;
+			}
+		}
+		this.count = tokens;
+	}
+
+	/**
+	 * Finds the number of tokens. An empty line has one empty token.
+	 *
+	 * @return the number of tokens
+	 */
+	public int count() {
+		return count;
+	}
+
+	/**
+	 * Finds the length of a token in bytes.
+	 *
+	 * @param  index the 0-based index of the token
+	 * @return       the length
+	 */
+	public int length(int index) {
+		return ends[index] - starts[index];
+	}
+
+	/**
+	 * Finds the whole line as it was given, before trimming.
+	 *
+	 * @return the line
+	 */
+	public String line() {
+		return new String(line, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Finds a token as a String.
+	 *
+	 * @param  index the 0-based index of the token
+	 * @return       the token
+	 */
+	public String token(int index) {
+		return new String(line, starts[index], ends[index] - starts[index], StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Finds the tokens from an index onwards as Strings.
+	 *
+	 * @param  from the 0-based index of the first token
+	 * @return      the tokens
+	 */
+	public ArrayList<String> tokens(int from) {
+		ArrayList<String> tokens = new ArrayList<String>(Math.max(0, count - from));
+
+		for (int i=from;i<count;i++) {
+			tokens.add(token(i));
+		}
+		return tokens;
+	}
+
+	/**
+	 * Checks if a token is the given word, ignoring the case of ASCII letters.
+	 *
+	 * @param  index the 0-based index of the token
+	 * @param  word  the word in lower case
+	 * @return       true if the token is the word
+	 */
+	public boolean is(int index, String word) {
+		int start = starts[index];
+
+		if (ends[index] - start != word.length()) {
+			return false;
+		}
+
+		for (int i=0;i<word.length();i++) {
+			int b = line[start + i];
+			char c = word.charAt(i);
+
+			if (b != c && !(c >= 'a' && c <= 'z' && b == c - ('a' - 'A'))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parses a token as an int, accepting what Integer.parseInt accepts.
+	 *
+	 * @param  index the 0-based index of the token
+	 * @return       the number, or NOT_A_NUMBER if the token is not an int
+	 */
+	public long number(int index) {
+		byte[] bytes = line;
+		int i = starts[index];
+		int end = ends[index];
+
+		if (i == end) {
+			return NOT_A_NUMBER;
+		}
+
+		boolean negative = bytes[i] == '-';
+
+		if (negative || bytes[i] == '+') {
+			i++;
+
+			if (i == end) {
+				return NOT_A_NUMBER;
+			}
+		}
+
+		//Ten digits cannot overflow a long, longer numbers are rare enough to parse slowly.
+		if (end - i > 10) {
+			return parseSlowly(index);
+		}
+
+		long value = 0;
+
+		for (;i<end;i++) {
+			int digit = bytes[i] - '0';
+
+			if (digit < 0 || digit > 9) {
+				//Integer.parseInt also takes digits from other scripts.
+				return (bytes[i] < 0) ? parseSlowly(index) : NOT_A_NUMBER;
+			}
+			value = value * 10 + digit;
+		}
+
+		value = negative ? -value : value;
+		return (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) ? NOT_A_NUMBER : value;
+	}
+
+	/**
+	 * Parses the tokens from an index onwards as values, skipping the ones
+	 * that are not ints.
+	 *
+	 * @param from   the 0-based index of the first token
+	 * @param values the list to fill, which is cleared first
+	 */
+	public void numbers(int from, IntList values) {
+		values.clear();
+
+		for (int i=from;i<count;i++) {
+			long value = number(i);
+
+			if (value != NOT_A_NUMBER) {
+				values.add((int) value);
+			}
+		}
+	}
+
+	private long parseSlowly(int index) {
+		try {
+			return Integer.parseInt(token(index));
+		} catch (NumberFormatException e) {
+			return NOT_A_NUMBER;
+		}
+	}
+}
@@ -0,0 +1,398 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * VarintArchive reads and writes the compact archive formats.
+ *
+ * Each value is stored as the difference from the value before it in the
+ * same entry, zig-zag encoded so that small negative differences stay small,
+ * and written as a varint of 7 bits per byte. Sorted or clustered values
+ * mostly take one or two bytes each.
+ *
+ * The file starts with an 8 byte header: the magic bytes 0x89 'C' 'D' 'Z',
+ * a version byte, a flags byte and two reserved zero bytes. The encoded
+ * entries follow in blocks of up to 256 KB, each written as its encoded
+ * length, its stored length and the CRC32 of the encoded bytes, then the
+ * stored bytes. When the deflate flag is set the stored bytes are the
+ * block compressed with Deflater. A block of length 0 ends the file.
+ *
+ * Inside the blocks each entry is the varint of its key length plus one,
+ * the UTF-8 key, the varint number of values and the values. A key length
+ * varint of 0 ends the entries. Both writing and reading work one block at
+ * a time, so neither holds a second copy of the entries.
+ */
+
+public class VarintArchive {
+	public static final byte[] MAGIC = { (byte) 0x89, 'C', 'D', 'Z' };
+	public static final byte VERSION = 1;
+
+	private static final int FLAG_DEFLATE = 1;
+	private static final int BLOCK_SIZE = 1 << 18;
+	private static final int END_OF_ENTRIES = 0;
+
+	private VarintArchive() {
+	}
+
+	/**
+	 * Checks whether the first bytes of a file are the magic bytes of this format.
+	 *
+	 * @param  start  the first bytes of the file
+	 * @param  length the number of bytes read
+	 * @return        true if the file is a varint archive
+	 */
+	public static boolean hasMagic(byte[] start, int length) {
+		if (length < MAGIC.length) {
+			return false;
+		}
+
+		for (int i=0;i<MAGIC.length;i++) {
+			if (start[i] != MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Saves the entries to a varint archive.
+	 *
+	 * @param  entries     the entries to save
+	 * @param  filename    the name of the file
+	 * @param  deflate     true to also compress each block
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(Iterable<Entry> entries, String filename, boolean deflate) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(Paths.get(filename)), BLOCK_SIZE));
+				BlockOutput blocks = new BlockOutput(out, deflate)) {
+			out.write(MAGIC);
+			out.writeByte(VERSION);
+			out.writeByte(deflate ? FLAG_DEFLATE : 0);
+			out.writeShort(0);
+
+			for (Entry entry : entries) {
+				byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+				IntList values = entry.readValues();
+				long previous = 0;
+
+				blocks.writeVarLong(key.length + 1);
+				blocks.write(key);
+				blocks.writeVarLong(values.size());
+
+				for (int i=0;i<values.size();i++) {
+					long delta = values.get(i) - previous;
+					blocks.writeVarLong((delta << 1) ^ (delta >> 63));
+					previous = values.get(i);
+				}
+			}
+
+			blocks.writeVarLong(END_OF_ENTRIES);
+			blocks.finish();
+		}
+	}
+
+	/**
+	 * Loads the entries from a varint archive. Entries without values are skipped.
+	 *
+	 * @param  filename    the name of the file
+	 * @return             the entries in the order they were saved
+	 * @throws IOException if the file cannot be read or is not a valid archive
+	 */
+	public static List<Entry> read(String filename) throws IOException {
+		List<Entry> allEntries = new ArrayList<Entry>();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(filename)), BLOCK_SIZE))) {
+			byte[] header = new byte[8];
+			in.readFully(header);
+
+			if (!hasMagic(header, header.length)) {
+				throw new IOException(filename + " is not a varint archive");
+			}
+			if (header[MAGIC.length] != VERSION) {
+				throw new IOException(filename + " has unsupported version " + header[MAGIC.length]);
+			}
+
+			try (BlockInput blocks = new BlockInput(in, (header[MAGIC.length + 1] & FLAG_DEFLATE) != 0)) {
+				while (true) {
+					long keyLength = blocks.readVarLong();
+
+					if (keyLength == END_OF_ENTRIES) {
+						break;
+					}
+					byte[] key = new byte[checkedSize(keyLength - 1)];
+					blocks.read(key);
+
+					int count = checkedSize(blocks.readVarLong());
+					IntList values = new IntList(Math.min(count, BLOCK_SIZE));
+					long previous = 0;
+
+					for (int i=0;i<count;i++) {
+						long zigzag = blocks.readVarLong();
+						previous += (zigzag >>> 1) ^ -(zigzag & 1);
+						values.add((int) previous);
+					}
+
+					if (count > 0) {
+						allEntries.add(Entry.adopt(new String(key, StandardCharsets.UTF_8), values));
+					}
+				}
+
+				blocks.expectEnd();
+			}
+		} catch (EOFException e) {
+			throw new IOException(filename + " is truncated", e);
+		}
+
+		return allEntries;
+	}
+
+	private static int checkedSize(long size) throws IOException {
+		if (size < 0 || size > Integer.MAX_VALUE) {
+			throw new IOException("archive is corrupt, invalid length " + size);
+		}
+		return (int) size;
+	}
+
+	/**
+	 * BlockOutput collects encoded bytes into a block and writes each full
+	 * block, compressed if asked, before starting the next.
+	 */
+	private static final class BlockOutput implements AutoCloseable {
+		private final DataOutputStream out;
+		private final Deflater deflater;
+		private final CRC32 crc;
+		private final byte[] block;
+		private byte[] stored;
+		private int length;
+
+		BlockOutput(DataOutputStream out, boolean deflate) {
+			this.out = out;
+			this.deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+			this.crc = new CRC32();
+			this.block = new byte[BLOCK_SIZE];
+			this.stored = deflate ? new byte[BLOCK_SIZE + BLOCK_SIZE / 16] : null;
+			this.length = 0;
+		}
+
+		void writeVarLong(long value) throws IOException {
+			if (block.length - length < 10) {
+				flush();
+			}
+
+			while ((value & ~0x7FL) != 0) {
+				block[length++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			block[length++] = (byte) value;
+		}
+
+		void write(byte[] bytes) throws IOException {
+			int offset = 0;
+
+			while (offset < bytes.length) {
+				if (length == block.length) {
+					flush();
+				}
+				int count = Math.min(block.length - length, bytes.length - offset);
+				System.arraycopy(bytes, offset, block, length, count);
+				length += count;
+				offset += count;
+			}
+		}
+
+		/**
+		 * Writes the last block and the block that ends the file.
+		 */
+		void finish() throws IOException {
+			flush();
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeInt(0);
+		}
+
+		/**
+		 * Frees the native memory of the compressor, also when writing failed.
+		 */
+		public void close() {
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+
+		private void flush() throws IOException {
+			if (length == 0) {
+				return;
+			}
+
+			crc.reset();
+			crc.update(block, 0, length);
+
+			if (deflater == null) {
+				writeBlock(block, length);
+			} else {
+				deflater.reset();
+				deflater.setInput(block, 0, length);
+				deflater.finish();
+				int storedLength = 0;
+
+				while (!deflater.finished()) {
+					if (storedLength == stored.length) {
+						stored = Arrays.copyOf(stored, stored.length * 2);
+					}
+					storedLength += deflater.deflate(stored, storedLength, stored.length - storedLength);
+				}
+				writeBlock(stored, storedLength);
+			}
+			length = 0;
+		}
+
+		private void writeBlock(byte[] bytes, int storedLength) throws IOException {
+			out.writeInt(length);
+			out.writeInt(storedLength);
+			out.writeInt((int) crc.getValue());
+			out.write(bytes, 0, storedLength);
+		}
+	}
+
+	/**
+	 * BlockInput reads one block at a time, checking its CRC32, and hands out
+	 * its bytes until the next block is needed.
+	 */
+	private static final class BlockInput implements AutoCloseable {
+		private final DataInputStream in;
+		private final Inflater inflater;
+		private final CRC32 crc;
+		private final byte[] block;
+		private byte[] stored;
+		private int length;
+		private int position;
+
+		BlockInput(DataInputStream in, boolean deflate) {
+			this.in = in;
+			this.inflater = deflate ? new Inflater() : null;
+			this.crc = new CRC32();
+			this.block = new byte[BLOCK_SIZE];
+			this.stored = deflate ? new byte[BLOCK_SIZE] : null;
+			this.length = 0;
+			this.position = 0;
+		}
+
+		long readVarLong() throws IOException {
+			long result = 0;
+
+			for (int shift=0;shift<64;shift+=7) {
+				if (position == length) {
+					nextBlock();
+				}
+				int b = block[position++];
+				result |= (long) (b & 0x7F) << shift;
+
+				if (b >= 0) {
+					return result;
+				}
+			}
+			throw new IOException("archive is corrupt, varint too long");
+		}
+
+		void read(byte[] bytes) throws IOException {
+			int offset = 0;
+
+			while (offset < bytes.length) {
+				if (position == length) {
+					nextBlock();
+				}
+				int count = Math.min(length - position, bytes.length - offset);
+				System.arraycopy(block, position, bytes, offset, count);
+				position += count;
+				offset += count;
+			}
+		}
+
+		/**
+		 * Checks that the entries end exactly where the file does.
+		 */
+		void expectEnd() throws IOException {
+			if (position != length || in.readInt() != 0 || in.readInt() != 0 || in.readInt() != 0 || in.read() != -1) {
+				throw new IOException("archive is corrupt, data after the entries");
+			}
+		}
+
+		/**
+		 * Frees the native memory of the decompressor, also when reading failed.
+		 */
+		public void close() {
+			if (inflater != null) {
+				inflater.end();
+			}
+		}
+
+		private void nextBlock() throws IOException {
+			int rawLength = in.readInt();
+			int storedLength = in.readInt();
+			int checksum = in.readInt();
+
+			if (rawLength <= 0 || rawLength > BLOCK_SIZE || storedLength < 0 || storedLength > 2 * BLOCK_SIZE) {
+				throw new IOException("archive is corrupt or truncated");
+			}
+
+			if (inflater == null) {
+				if (storedLength != rawLength) {
+					throw new IOException("archive is corrupt, block length mismatch");
+				}
+				in.readFully(block, 0, rawLength);
+			} else {
+				if (storedLength > stored.length) {
+					stored = new byte[storedLength];
+				}
+				in.readFully(stored, 0, storedLength);
+				inflate(storedLength, rawLength);
+			}
+
+			crc.reset();
+			crc.update(block, 0, rawLength);
+
+			if ((int) crc.getValue() != checksum) {
+				throw new IOException("archive is corrupt, block failed its checksum");
+			}
+			length = rawLength;
+			position = 0;
+		}
+
+		private void inflate(int storedLength, int rawLength) throws IOException {
+			inflater.reset();
+			inflater.setInput(stored, 0, storedLength);
+
+			try {
+				int inflated = 0;
+
+				while (inflated < rawLength && !inflater.finished()) {
+					int count = inflater.inflate(block, inflated, rawLength - inflated);
+
+					if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					inflated += count;
+				}
+
+				if (inflated != rawLength) {
+					throw new IOException("archive is corrupt, block is too short");
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("archive is corrupt, " + e.getMessage(), e);
+			}
+		}
+	}
+}
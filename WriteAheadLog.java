@@ -0,0 +1,532 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog is an append-only file of the commands that changed the
+ * database, so that the state can be rebuilt by running them again after a
+ * crash. Each record is one command line, written as the CRC32 of the line
+ * in 8 hex digits, a space, the line and a line break. A record that was only
+ * partly written when the process died fails its checksum and is dropped
+ * when the log is opened.
+ *
+ * Records are written by a background thread. Commands appended while it
+ * writes and syncs one batch go out together in the next batch, so many
+ * commands share one fsync.
+ *
+ * After a RESTORE the log starts again from a checkpoint: the restored
+ * entries are saved in a VARINT file next to the log, named after the log
+ * with ".checkpoint-" and a generation number, and everything logged before
+ * is thrown away. The checkpoint belongs to the log, so changing or deleting
+ * the restored archive afterwards does not change what is replayed. A new
+ * checkpoint is on disk before the log refers to it, and the old one is only
+ * deleted once it is no longer referred to.
+ */
+
+public class WriteAheadLog {
+
+	/**
+	 * What the records of the log are replayed into when it is opened.
+	 */
+	public interface Replay {
+
+		/**
+		 * Replaces the state with the entries of the checkpoint the log starts from.
+		 *
+		 * @param entries the entries, from most recently added to least recently added
+		 */
+		void restoreCheckpoint(List<Entry> entries);
+
+		/**
+		 * Runs one logged command line.
+		 *
+		 * @param line the command line
+		 */
+		void replay(String line);
+	}
+
+	/**
+	 * When the log is forced to disk.
+	 */
+	public enum SyncPolicy {
+		/** Every command waits until its record is on disk. */
+		ALWAYS,
+		/** Records are written and synced every few milliseconds. */
+		INTERVAL,
+		/** Records are written promptly and the OS decides when to sync. */
+		OS
+	}
+
+	/** The record that names the checkpoint the log starts from. */
+	private static final String CHECKPOINT_RECORD = "#checkpoint ";
+
+	private final Path path;
+	private final FileChannel channel;
+	private final SyncPolicy policy;
+	private final long intervalMillis;
+	private final Object lock = new Object();
+	private final Object ioLock = new Object();
+	private final CRC32 crc = new CRC32();
+	private final Thread flusher;
+
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private ByteArrayOutputStream writing = new ByteArrayOutputStream();
+	private long appended;
+	private volatile long applied;
+	private final Map<Long, Thread> turns = new ConcurrentHashMap<Long, Thread>();
+	private long synced;
+	private boolean closed;
+	private IOException failure;
+	private long checkpoint;
+
+	private WriteAheadLog(Path path, FileChannel channel, SyncPolicy policy, long intervalMillis) {
+		this.path = path;
+		this.channel = channel;
+		this.policy = policy;
+		this.intervalMillis = intervalMillis;
+		this.flusher = new Thread(this::flushLoop, "write-ahead-log");
+		this.flusher.setDaemon(true);
+	}
+
+	/**
+	 * Opens a log, creating the file if needed, and passes its checkpoint
+	 * and every command already in it to the replay handler before new
+	 * records are accepted.
+	 *
+	 * @param  path           the file of the log
+	 * @param  policy         when records are forced to disk
+	 * @param  intervalMillis the time between syncs for the INTERVAL policy
+	 * @param  replay         receives the checkpoint and each logged command line in order
+	 * @return                the open log
+	 * @throws IOException    if the file cannot be read or written, or its
+	 *                        checkpoint cannot be loaded
+	 */
+	public static WriteAheadLog open(Path path, SyncPolicy policy, long intervalMillis, Replay replay) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		WriteAheadLog log = new WriteAheadLog(path, channel, policy, intervalMillis);
+
+		try {
+			long validLength = log.readRecords(replay);
+
+			if (validLength < channel.size()) {
+				System.err.println(path + ": dropped a partly written record at byte " + validLength);
+				channel.truncate(validLength);
+			}
+			channel.position(validLength);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		log.flusher.start();
+		return log;
+	}
+
+	/**
+	 * Adds a command to the log. The command must then be run between
+	 * awaitTurn and applied with the returned sequence number, even if
+	 * awaitDurable fails, so that commands logged after it can run.
+	 *
+	 * @param  line        the command line
+	 * @return             the sequence number of the record
+	 * @throws IOException if the log is closed or has failed
+	 */
+	public long append(String line) throws IOException {
+		synchronized (lock) {
+			checkOpen();
+			encode(line, pending);
+			lock.notifyAll();
+			return ++appended;
+		}
+	}
+
+	/**
+	 * With the ALWAYS policy, waits until a record, and any others written
+	 * with it, is on disk. With the other policies this returns at once.
+	 *
+	 * @param  sequence    the sequence number of the record
+	 * @throws IOException if the log could not be written
+	 */
+	public void awaitDurable(long sequence) throws IOException {
+		if (policy == SyncPolicy.ALWAYS) {
+			awaitSynced(sequence);
+		}
+	}
+
+	/**
+	 * Waits until every command logged before the given one has been
+	 * applied, so that commands are applied in the order they are replayed.
+	 *
+	 * @param sequence the sequence number of the record
+	 */
+	public void awaitTurn(long sequence) {
+		if (applied == sequence - 1) {
+			return;
+		}
+
+		//Only the command applied just before this one wakes it.
+		Thread waiting = Thread.currentThread();
+		boolean interrupted = false;
+		turns.put(sequence, waiting);
+
+		while (applied < sequence - 1) {
+			LockSupport.park(this);
+
+			//The turn must still be taken, or every later command would wait forever.
+			if (Thread.interrupted()) {
+				interrupted = true;
+			}
+		}
+		turns.remove(sequence);
+
+		if (interrupted) {
+			waiting.interrupt();
+		}
+	}
+
+	/**
+	 * Marks a command as applied, letting the next logged command run.
+	 *
+	 * @param sequence the sequence number of the record
+	 */
+	public void applied(long sequence) {
+		applied = sequence;
+		Thread next = turns.get(sequence + 1);
+
+		if (next != null) {
+			LockSupport.unpark(next);
+		}
+	}
+
+	/**
+	 * Throws away every record and starts the log again from a new
+	 * checkpoint of the given entries, followed by the given commands. Both
+	 * are on disk when this returns.
+	 *
+	 * @param  entries     the whole state, from most recently added to least recently added
+	 * @param  lines       the commands that follow the checkpoint
+	 * @throws IOException if the checkpoint or the log could not be written
+	 */
+	public void checkpoint(List<Entry> entries, String... lines) throws IOException {
+		long previous;
+
+		synchronized (lock) {
+			checkOpen();
+			previous = checkpoint;
+		}
+
+		long generation = previous + 1;
+		Path file = checkpointFile(generation);
+		VarintArchive.write(entries, file.toString(), false);
+		force(file);
+
+		String[] records = new String[lines.length + 1];
+		records[0] = CHECKPOINT_RECORD + generation;
+		System.arraycopy(lines, 0, records, 1, lines.length);
+		restart(records);
+
+		synchronized (lock) {
+			checkpoint = generation;
+		}
+
+		//The log no longer refers to the old checkpoint, so failing to delete it loses nothing.
+		if (previous > 0) {
+			try {
+				Files.deleteIfExists(checkpointFile(previous));
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Throws away every record and starts the log again with the given
+	 * commands, which are on disk when this returns.
+	 */
+	private void restart(String... lines) throws IOException {
+		long sequence;
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+		synchronized (ioLock) {
+			synchronized (lock) {
+				checkOpen();
+				pending.reset();
+
+				for (String line : lines) {
+					encode(line, record);
+				}
+				appended += lines.length;
+				sequence = appended;
+				//The new first records stand for the state as it is, so they count as applied.
+				applied = appended;
+			}
+
+			channel.truncate(0);
+			channel.position(0);
+			writeFully(record);
+			channel.force(false);
+		}
+		markSynced(sequence);
+	}
+
+	/**
+	 * Writes and syncs everything still pending and closes the file.
+	 *
+	 * @throws IOException if the last records could not be written
+	 */
+	public void close() throws IOException {
+		synchronized (lock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			lock.notifyAll();
+		}
+
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+
+		synchronized (lock) {
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	private void flushLoop() {
+		while (true) {
+			synchronized (lock) {
+				try {
+					if (policy == SyncPolicy.INTERVAL) {
+						if (!closed) {
+							lock.wait(intervalMillis);
+						}
+					} else {
+						while (pending.size() == 0 && !closed) {
+							lock.wait();
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+
+			try {
+				long target = flushPending();
+				markSynced(target);
+			} catch (IOException e) {
+				synchronized (lock) {
+					failure = e;
+					lock.notifyAll();
+				}
+				return;
+			}
+
+			synchronized (lock) {
+				if (closed && pending.size() == 0) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the pending records as one batch and syncs them unless the OS
+	 * policy is used.
+	 *
+	 * @return the sequence number of the last record written
+	 */
+	private long flushPending() throws IOException {
+		synchronized (ioLock) {
+			long target;
+
+			//Swap buffers so that commands can keep appending during the write.
+			synchronized (lock) {
+				ByteArrayOutputStream batch = pending;
+				pending = writing;
+				writing = batch;
+				target = appended;
+			}
+
+			if (writing.size() > 0) {
+				writeFully(writing);
+
+				if (policy != SyncPolicy.OS || closed) {
+					channel.force(false);
+				}
+			}
+			writing.reset();
+			return target;
+		}
+	}
+
+	private void writeFully(ByteArrayOutputStream bytes) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private void awaitSynced(long sequence) throws IOException {
+		synchronized (lock) {
+			while (synced < sequence && failure == null) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted while waiting for the write-ahead log", e);
+				}
+			}
+
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	private void markSynced(long sequence) {
+		synchronized (lock) {
+			synced = Math.max(synced, sequence);
+			lock.notifyAll();
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+		if (closed) {
+			throw new IOException("write-ahead log is closed");
+		}
+	}
+
+	/**
+	 * Encodes one record. Must be called while holding the lock.
+	 */
+	private void encode(String line, ByteArrayOutputStream out) {
+		byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+		crc.reset();
+		crc.update(bytes);
+		byte[] checksum = String.format("%08x ", crc.getValue()).getBytes(StandardCharsets.US_ASCII);
+		out.write(checksum, 0, checksum.length);
+		out.write(bytes, 0, bytes.length);
+		out.write('\n');
+	}
+
+	private Path checkpointFile(long generation) {
+		return Paths.get(path.toString() + ".checkpoint-" + generation);
+	}
+
+	/**
+	 * Forces a new file and the directory entry that names it to disk.
+	 */
+	private static void force(Path file) throws IOException {
+		try (FileChannel written = FileChannel.open(file, StandardOpenOption.READ)) {
+			written.force(true);
+		}
+
+		Path directory = file.toAbsolutePath().getParent();
+
+		//Not every platform can open a directory to sync it.
+		try (FileChannel entry = FileChannel.open(directory, StandardOpenOption.READ)) {
+			entry.force(true);
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Loads the checkpoint named by a record and passes it to the replay handler.
+	 */
+	private void replayCheckpoint(String record, Replay replay) throws IOException {
+		Path file;
+
+		try {
+			checkpoint = Long.parseLong(record.substring(CHECKPOINT_RECORD.length()));
+			file = checkpointFile(checkpoint);
+		} catch (NumberFormatException e) {
+			throw new IOException("invalid checkpoint record " + record, e);
+		}
+
+		try {
+			replay.restoreCheckpoint(VarintArchive.read(file.toString()));
+		} catch (NoSuchFileException e) {
+			throw new IOException("checkpoint " + file + " is missing", e);
+		} catch (IOException e) {
+			throw new IOException("could not load checkpoint " + file + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Reads the records from the start of the file.
+	 *
+	 * @return the length of the file up to the end of the last valid record
+	 */
+	private long readRecords(Replay replay) throws IOException {
+		InputStream in = new BufferedInputStream(Channels.newInputStream(channel.position(0)), 1 << 16);
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		CRC32 crc = new CRC32();
+		long validLength = 0;
+		long position = 0;
+		int b;
+
+		while ((b = in.read()) != -1) {
+			position++;
+
+			if (b != '\n') {
+				record.write(b);
+				continue;
+			}
+
+			byte[] bytes = record.toByteArray();
+			record.reset();
+
+			if (bytes.length < 9 || bytes[8] != ' ') {
+				break;
+			}
+
+			long expected;
+			try {
+				expected = Long.parseLong(new String(bytes, 0, 8, StandardCharsets.US_ASCII), 16);
+			} catch (NumberFormatException e) {
+				break;
+			}
+
+			crc.reset();
+			crc.update(bytes, 9, bytes.length - 9);
+
+			if (crc.getValue() != expected) {
+				break;
+			}
+
+			String line = new String(bytes, 9, bytes.length - 9, StandardCharsets.UTF_8);
+
+			if (line.startsWith(CHECKPOINT_RECORD)) {
+				replayCheckpoint(line, replay);
+			} else {
+				replay.replay(line);
+			}
+			validLength = position;
+		}
+		return validLength;
+	}
+}